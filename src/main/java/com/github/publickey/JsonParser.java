@@ -0,0 +1,216 @@
+package com.github.publickey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser used to read JSON Web Key Sets without depending on a
+ * JSON library. Objects are returned as {@link Map}, arrays as {@link List},
+ * strings and numbers as {@link String} (numbers keep their literal text),
+ * booleans as {@link Boolean} and <code>null</code> as null.
+ */
+final class JsonParser {
+	// maximum nesting of objects and arrays, bounds the recursion of hostile documents
+	private static final int MAX_DEPTH = 64;
+
+	private final String json;
+	private int position;
+	private int depth;
+
+	private JsonParser(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * Parse the given JSON document
+	 *
+	 * @param json
+	 *            JSON document
+	 * @return Parsed value
+	 * @throws IOException
+	 *             In case the document is not valid JSON
+	 */
+	static Object parse(String json) throws IOException {
+		JsonParser parser = new JsonParser(json);
+		Object value = parser.readValue();
+		parser.skipWhitespace();
+		if (parser.position != json.length()) {
+			throw parser.error("Unexpected trailing content");
+		}
+		return value;
+	}
+
+	private Object readValue() throws IOException {
+		skipWhitespace();
+		if (position >= json.length()) {
+			throw error("Unexpected end of document");
+		}
+
+		char c = json.charAt(position);
+		if ((c == '{' || c == '[') && depth >= MAX_DEPTH) {
+			throw error("Nesting deeper than " + MAX_DEPTH);
+		}
+		switch (c) {
+		case '{':
+			depth++;
+			Map<String, Object> object = readObject();
+			depth--;
+			return object;
+		case '[':
+			depth++;
+			List<Object> array = readArray();
+			depth--;
+			return array;
+		case '"':
+			return readString();
+		case 't':
+			readLiteral("true");
+			return Boolean.TRUE;
+		case 'f':
+			readLiteral("false");
+			return Boolean.FALSE;
+		case 'n':
+			readLiteral("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() throws IOException {
+		Map<String, Object> object = new LinkedHashMap<String, Object>();
+		position++;
+		skipWhitespace();
+		if (consume('}')) {
+			return object;
+		}
+
+		do {
+			skipWhitespace();
+			if (position >= json.length() || json.charAt(position) != '"') {
+				throw error("Expected member name");
+			}
+			String name = readString();
+			skipWhitespace();
+			if (!consume(':')) {
+				throw error("Expected ':'");
+			}
+			object.put(name, readValue());
+			skipWhitespace();
+		} while (consume(','));
+
+		if (!consume('}')) {
+			throw error("Expected '}'");
+		}
+		return object;
+	}
+
+	private List<Object> readArray() throws IOException {
+		List<Object> array = new ArrayList<Object>();
+		position++;
+		skipWhitespace();
+		if (consume(']')) {
+			return array;
+		}
+
+		do {
+			array.add(readValue());
+			skipWhitespace();
+		} while (consume(','));
+
+		if (!consume(']')) {
+			throw error("Expected ']'");
+		}
+		return array;
+	}
+
+	private String readString() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		position++;
+		while (position < json.length()) {
+			char c = json.charAt(position++);
+			if (c == '"') {
+				return builder.toString();
+			}
+			if (c != '\\') {
+				builder.append(c);
+				continue;
+			}
+			if (position >= json.length()) {
+				break;
+			}
+
+			char escaped = json.charAt(position++);
+			switch (escaped) {
+			case 'b':
+				builder.append('\b');
+				break;
+			case 'f':
+				builder.append('\f');
+				break;
+			case 'n':
+				builder.append('\n');
+				break;
+			case 'r':
+				builder.append('\r');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			case 'u':
+				if (position + 4 > json.length()) {
+					throw error("Invalid unicode escape");
+				}
+				try {
+					builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Invalid unicode escape");
+				}
+				position += 4;
+				break;
+			default:
+				builder.append(escaped);
+			}
+		}
+		throw error("Unterminated string");
+	}
+
+	private String readNumber() throws IOException {
+		int start = position;
+		while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+			position++;
+		}
+		if (start == position) {
+			throw error("Unexpected character '" + json.charAt(position) + "'");
+		}
+		return json.substring(start, position);
+	}
+
+	private void readLiteral(String literal) throws IOException {
+		if (!json.startsWith(literal, position)) {
+			throw error("Expected " + literal);
+		}
+		position += literal.length();
+	}
+
+	private boolean consume(char c) {
+		if (position < json.length() && json.charAt(position) == c) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void skipWhitespace() {
+		while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+			position++;
+		}
+	}
+
+	private IOException error(String message) {
+		return new IOException(message + " at position " + position);
+	}
+}
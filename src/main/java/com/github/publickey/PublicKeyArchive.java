@@ -36,7 +36,9 @@ public interface PublicKeyArchive {
 	/**
 	 * Upddate (reload) new keys from this archive into the given
 	 * {@link PublicKey}. This method should not remove any existing keys, only
-	 * update.
+	 * update. Archives backed by an authoritative source (like
+	 * {@link PublicKeyJwksArchive}) may remove keys they provided themselves
+	 * once the source revoked them.
 	 * 
 	 * @param keyStore
 	 *            {@link PublicKeyStore} to update
@@ -0,0 +1,492 @@
+package com.github.publickey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.AlgorithmParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.InvalidParameterSpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Read-only {@link PublicKeyArchive} backed by a JSON Web Key Set (JWKS)
+ * endpoint.
+ *
+ * Every key of the set with a supported key type (<code>RSA</code> or
+ * <code>EC</code>) is added to the key store using its <code>kid</code>
+ * (optionally prefixed) as alias. Refreshes use conditional GET requests
+ * (<code>ETag</code> / <code>Last-Modified</code>), so an unchanged set is
+ * neither downloaded nor parsed again, and only keys that are new or changed
+ * since the previous refresh are decoded. Concurrent refreshes are coalesced
+ * into a single request, and refreshes triggered by unknown aliases (see
+ * {@link #findKey(PublicKeyStore, String)}) are rate limited.
+ *
+ * Keys that cannot be decoded are skipped (see {@link #getFailures()}), a
+ * previously decoded version of such a key is kept. Keys that the last
+ * response of the endpoint no longer serves are removed from the key store by
+ * every refresh, unless their alias was reassigned to a different key in the
+ * meantime. Key stores that were not refreshed before the next response keep
+ * such keys until they are loaded again.
+ */
+public class PublicKeyJwksArchive implements PublicKeyArchive {
+	private final static Map<String, String> EC_CURVES = new HashMap<String, String>();
+	private final static ConcurrentMap<String, ECParameterSpec> EC_PARAMETERS = new ConcurrentHashMap<String, ECParameterSpec>();
+	static {
+		EC_CURVES.put("P-256", "secp256r1");
+		EC_CURVES.put("P-384", "secp384r1");
+		EC_CURVES.put("P-521", "secp521r1");
+	}
+
+	private final URL url;
+	private final String prefix;
+
+	private volatile int timeout = 10000;
+	private volatile long minRefreshInterval = 30000;
+
+	// state of the single refresh in flight, guarded by lock
+	private final Object lock = new Object();
+	private boolean refreshing;
+	private long generation;
+	private long lastRefresh;
+	private Exception failure;
+	private long failedGeneration = -1;
+
+	// validators and keys of the last successful response, guarded by lock
+	private String etag;
+	private long lastModified;
+	private Map<String, Map<String, Object>> jwks = Collections.emptyMap();
+	private Map<String, PublicKey> keys = Collections.emptyMap();
+	private Map<String, PublicKey> retired = Collections.emptyMap(); // removed by the last response
+	private Map<String, Exception> failures = Collections.emptyMap();
+
+	/**
+	 * @param url
+	 *            URL of the JWKS endpoint
+	 */
+	public PublicKeyJwksArchive(URL url) {
+		this(url, "");
+	}
+
+	/**
+	 * @param url
+	 *            URL of the JWKS endpoint
+	 * @param prefix
+	 *            Prefix added to the <code>kid</code> of every key to create
+	 *            its alias
+	 */
+	public PublicKeyJwksArchive(URL url, String prefix) {
+		if (url == null) {
+			throw new IllegalArgumentException("URL is required");
+		}
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		this.url = url;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param timeout
+	 *            Connect and read timeout of the requests in milliseconds
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param minRefreshInterval
+	 *            Minimum time between two refreshes triggered by unknown
+	 *            aliases in milliseconds
+	 */
+	public void setMinRefreshInterval(long minRefreshInterval) {
+		this.minRefreshInterval = minRefreshInterval;
+	}
+
+	/**
+	 * @return Keys of the last response that could not be decoded by alias,
+	 *         with the reason they could not be decoded
+	 */
+	public Map<String, Exception> getFailures() {
+		synchronized (lock) {
+			return failures;
+		}
+	}
+
+	/**
+	 * JWKS endpoints are read-only
+	 *
+	 * @throws IOException
+	 *             Always
+	 */
+	@Override
+	public void store(PublicKeyStore keyStore) throws IOException {
+		throw new IOException("JWKS archive is read-only");
+	}
+
+	/**
+	 * Load the keys of the endpoint into the given {@link PublicKeyStore},
+	 * replacing all other keys with aliases starting with the prefix of this
+	 * archive.
+	 */
+	@Override
+	public void load(PublicKeyStore keyStore) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		refresh(keyStore, null, prefix);
+	}
+
+	/**
+	 * Update the keys of the endpoint into the given {@link PublicKeyStore}.
+	 * Other keys are kept, except keys of this archive that the last response
+	 * of the endpoint revoked.
+	 */
+	@Override
+	public void update(PublicKeyStore keyStore) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		refresh(keyStore, null, null);
+	}
+
+	/**
+	 * Find the {@link PublicKey} with the given <code>kid</code> in the key
+	 * store, refreshing the key store from the endpoint in case the key is
+	 * unknown. Such refreshes happen at most once per minimum refresh
+	 * interval, in between the keys of the last response are applied instead.
+	 * Lookups arriving while a refresh is in flight wait for it instead of
+	 * starting another one.
+	 *
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to search and update
+	 * @param kid
+	 *            Key id of the key to return
+	 * @return {@link PublicKey} or null in case {@link PublicKey} cannot be
+	 *         identified.
+	 * @throws IOException
+	 *             In case the endpoint cannot be read
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 */
+	public PublicKey findKey(PublicKeyStore keyStore, String kid) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		if (kid == null) {
+			throw new IllegalArgumentException("Kid may not be null");
+		}
+
+		String alias = prefix + kid;
+		PublicKey publicKey = keyStore.findKey(alias);
+		if (publicKey == null) {
+			refresh(keyStore, kid, null);
+			publicKey = keyStore.findKey(alias);
+		}
+		return publicKey;
+	}
+
+	/**
+	 * Refresh the keys from the endpoint (or join the refresh in flight) and
+	 * apply them to the given key store
+	 *
+	 * @param missingKid
+	 *            In case not null, the refresh is triggered by this unknown
+	 *            key and rate limited. A rate limited refresh only applies the
+	 *            keys of the last response in case they contain the key.
+	 * @param replacePrefix
+	 *            In case not null, all other aliases with this prefix are
+	 *            removed from the key store
+	 */
+	private void refresh(PublicKeyStore keyStore, String missingKid, String replacePrefix) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		boolean leader;
+		synchronized (lock) {
+			if (refreshing) {
+				// join the refresh in flight and share its outcome
+				long current = generation;
+				while (refreshing && generation == current) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for refresh");
+					}
+				}
+				if (failedGeneration == current) {
+					rethrow(failure);
+				}
+				leader = false;
+			} else if (missingKid != null && System.currentTimeMillis() - lastRefresh < minRefreshInterval) {
+				if (!keys.containsKey(missingKid)) {
+					return;
+				}
+				leader = false;
+			} else {
+				refreshing = true;
+				lastRefresh = System.currentTimeMillis();
+				leader = true;
+			}
+		}
+
+		if (!leader) {
+			apply(keyStore, replacePrefix);
+			return;
+		}
+
+		// waiters are released only once the keys are applied to the key
+		// store of the leader, so its lookups never miss them in between
+		boolean fetched = false;
+		Exception failure = null;
+		try {
+			fetch();
+			fetched = true;
+			apply(keyStore, replacePrefix);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			synchronized (lock) {
+				if (!fetched) {
+					this.failure = failure != null ? failure : new IOException("Refresh from " + url + " failed");
+					this.failedGeneration = generation;
+				}
+				refreshing = false;
+				generation++;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Perform the (conditional) request and decode new or changed keys
+	 */
+	private void fetch() throws IOException {
+		String etag;
+		long lastModified;
+		Map<String, Map<String, Object>> jwks;
+		Map<String, PublicKey> keys;
+		synchronized (lock) {
+			etag = this.etag;
+			lastModified = this.lastModified;
+			jwks = this.jwks;
+			keys = this.keys;
+		}
+
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		try {
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			connection.setRequestProperty("Accept", "application/json");
+			if (etag != null) {
+				connection.setRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified > 0) {
+				connection.setIfModifiedSince(lastModified);
+			}
+
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return;
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Unexpected HTTP status " + status + " from " + url);
+			}
+
+			String body;
+			InputStream in = connection.getInputStream();
+			try {
+				body = new String(readFully(in), "UTF-8");
+			} finally {
+				in.close();
+			}
+
+			Map<String, Map<String, Object>> updatedJwks = parseJwks(body);
+			Map<String, PublicKey> updatedKeys = new HashMap<String, PublicKey>();
+			Map<String, Exception> updatedFailures = new LinkedHashMap<String, Exception>();
+			Iterator<Entry<String, Map<String, Object>>> iterator = updatedJwks.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Entry<String, Map<String, Object>> entry = iterator.next();
+				String kid = entry.getKey();
+				Map<String, Object> jwk = entry.getValue();
+
+				// only decode keys that are new or changed
+				PublicKey publicKey = keys.get(kid);
+				if (publicKey == null || !jwk.equals(jwks.get(kid))) {
+					try {
+						publicKey = generatePublicKey(jwk);
+					} catch (Exception e) {
+						// quarantine the key, keeping its previous version
+						updatedFailures.put(prefix + kid, e);
+						if (publicKey == null) {
+							iterator.remove();
+							continue;
+						}
+						entry.setValue(jwks.get(kid));
+					}
+				}
+				updatedKeys.put(kid, publicKey);
+			}
+
+			// keys of the previous response that are no longer served, so
+			// they can be removed until the next response replaces them
+			Map<String, PublicKey> updatedRetired = new HashMap<String, PublicKey>();
+			for (Entry<String, PublicKey> entry : keys.entrySet()) {
+				if (!updatedKeys.containsKey(entry.getKey())) {
+					updatedRetired.put(entry.getKey(), entry.getValue());
+				}
+			}
+
+			synchronized (lock) {
+				this.etag = connection.getHeaderField("ETag");
+				this.lastModified = connection.getLastModified();
+				this.jwks = updatedJwks;
+				this.keys = updatedKeys;
+				this.retired = updatedRetired;
+				this.failures = Collections.unmodifiableMap(updatedFailures);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Publish the keys into the key store and revoke keys that are no longer
+	 * served, the key store ignores keys that did not change
+	 */
+	private void apply(PublicKeyStore keyStore, String replacePrefix) {
+		Map<String, PublicKey> snapshot;
+		Map<String, PublicKey> retired;
+		synchronized (lock) {
+			snapshot = this.keys;
+			retired = this.retired;
+		}
+
+		Map<String, PublicKey> keys = new HashMap<String, PublicKey>();
+		for (Entry<String, PublicKey> entry : snapshot.entrySet()) {
+			keys.put(prefix + entry.getKey(), entry.getValue());
+		}
+		Map<String, PublicKey> revoked = new HashMap<String, PublicKey>();
+		for (Entry<String, PublicKey> entry : retired.entrySet()) {
+			revoked.put(prefix + entry.getKey(), entry.getValue());
+		}
+		keyStore.publish(keys, replacePrefix, Collections.<String>emptySet(), revoked);
+	}
+
+	/**
+	 * Rethrow the failure of a refresh to the callers that joined it
+	 */
+	private static void rethrow(Exception failure) throws IOException {
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		throw (RuntimeException) failure;
+	}
+
+	/**
+	 * @return Supported keys of the set by <code>kid</code>
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Map<String, Object>> parseJwks(String body) throws IOException {
+		Object document = JsonParser.parse(body);
+		if (!(document instanceof Map)) {
+			throw new IOException("JWKS is not a JSON object");
+		}
+		Object keys = ((Map<String, Object>) document).get("keys");
+		if (!(keys instanceof List)) {
+			throw new IOException("JWKS is missing \"keys\"");
+		}
+
+		Map<String, Map<String, Object>> jwks = new HashMap<String, Map<String, Object>>();
+		for (Object key : (List<Object>) keys) {
+			if (!(key instanceof Map)) {
+				continue;
+			}
+			Map<String, Object> jwk = (Map<String, Object>) key;
+			Object kid = jwk.get("kid");
+			Object kty = jwk.get("kty");
+			if (kid instanceof String && ("RSA".equals(kty) || ("EC".equals(kty) && EC_CURVES.containsKey(jwk.get("crv"))))) {
+				jwks.put((String) kid, jwk);
+			}
+		}
+		return jwks;
+	}
+
+	private static PublicKey generatePublicKey(Map<String, Object> jwk) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		String kty = (String) jwk.get("kty");
+		if ("RSA".equals(kty)) {
+			BigInteger modulus = parseInteger(jwk, "n");
+			BigInteger exponent = parseInteger(jwk, "e");
+			return PublicKeyPemUtility.getKeyFactory("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+		}
+
+		String curve = EC_CURVES.get(jwk.get("crv"));
+		if (curve == null) {
+			throw new InvalidKeySpecException("Unsupported curve " + jwk.get("crv") + " of key " + jwk.get("kid"));
+		}
+		ECPoint point = new ECPoint(parseInteger(jwk, "x"), parseInteger(jwk, "y"));
+		return PublicKeyPemUtility.getKeyFactory("EC").generatePublic(new ECPublicKeySpec(point, getCurve(curve)));
+	}
+
+	/**
+	 * @return Parameters of the named curve, resolved once per curve
+	 */
+	private static ECParameterSpec getCurve(String curve) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		ECParameterSpec spec = EC_PARAMETERS.get(curve);
+		if (spec == null) {
+			try {
+				AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+				parameters.init(new ECGenParameterSpec(curve));
+				spec = parameters.getParameterSpec(ECParameterSpec.class);
+			} catch (InvalidParameterSpecException e) {
+				throw new InvalidKeySpecException("Unsupported curve " + curve, e);
+			}
+			EC_PARAMETERS.put(curve, spec);
+		}
+		return spec;
+	}
+
+	/**
+	 * Decode unsigned big-endian integer encoded as base64url
+	 */
+	private static BigInteger parseInteger(Map<String, Object> jwk, String name) throws InvalidKeySpecException {
+		Object value = jwk.get(name);
+		if (!(value instanceof String)) {
+			throw new InvalidKeySpecException("Missing \"" + name + "\" of key " + jwk.get("kid"));
+		}
+
+		StringBuilder base64 = new StringBuilder(((String) value).replace('-', '+').replace('_', '/'));
+		while (base64.length() % 4 != 0) {
+			base64.append('=');
+		}
+		try {
+			return new BigInteger(1, DatatypeConverter.parseBase64Binary(base64.toString()));
+		} catch (IllegalArgumentException e) {
+			throw new InvalidKeySpecException("Invalid \"" + name + "\" of key " + jwk.get("kid"), e);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -1,6 +1,7 @@
 package com.github.publickey;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.security.KeyFactory;
@@ -8,6 +9,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 import javax.xml.bind.DatatypeConverter;
@@ -22,12 +26,38 @@ import javax.xml.bind.DatatypeConverter;
  * -----END PUBLIC KEY-----
  * <code>
  * 
+ * {@link KeyFactory} instances are resolved once per algorithm and thread, as
+ * provider lookups are synchronized and dominate decoding of small keys.
+ * 
  * @author Simon Galperin
  */
 public abstract class PublicKeyPemUtility {
 	private final static String PUBLIC_KEY_PREFIX = "-----BEGIN PUBLIC KEY-----";
 	private final static String PUBLIC_KEY_SUFFIX = "-----END PUBLIC KEY-----";
 
+	private final static byte[] PUBLIC_KEY_PREFIX_BYTES = ascii(PUBLIC_KEY_PREFIX + '\n');
+	private final static byte[] PUBLIC_KEY_SUFFIX_BYTES = ascii(PUBLIC_KEY_SUFFIX + '\n');
+	private final static byte[] BASE64 = ascii("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+	private final static int LINE_LENGTH = 64;
+
+	private final static byte[] PUBLIC_KEY_PREFIX_ARMOR = ascii(PUBLIC_KEY_PREFIX);
+	private final static byte[] PUBLIC_KEY_SUFFIX_ARMOR = ascii(PUBLIC_KEY_SUFFIX);
+	private final static int[] BASE64_VALUES = new int[128];
+	static {
+		Arrays.fill(BASE64_VALUES, -1);
+		for (int i = 0; i < BASE64.length; i++) {
+			BASE64_VALUES[BASE64[i]] = i;
+		}
+	}
+
+	// KeyFactory is not thread-safe, so instances are cached per thread
+	private final static ThreadLocal<Map<String, KeyFactory>> KEY_FACTORIES = new ThreadLocal<Map<String, KeyFactory>>() {
+		@Override
+		protected Map<String, KeyFactory> initialValue() {
+			return new HashMap<String, KeyFactory>();
+		}
+	};
+
 	/**
 	 * Write Public Key in PEM format to the writer.
 	 * 
@@ -52,6 +82,69 @@ public abstract class PublicKeyPemUtility {
 		writer.write("\n");
 	}
 
+	/**
+	 * Write Public Key in PEM format to the output stream. The PEM is written
+	 * as US-ASCII bytes, without going through a character encoder.
+	 * 
+	 * @param out
+	 * 			Output stream
+	 * @param publicKey
+	 *            Public key to store
+	 * @throws IOException
+	 */
+	public static void writeKey(OutputStream out, PublicKey publicKey) throws IOException {
+		out.write(encodeKey(publicKey));
+	}
+
+	/**
+	 * Encode Public Key in PEM format (identical to the output of
+	 * {@link #writeKey(Writer, PublicKey)}) as US-ASCII bytes.
+	 * 
+	 * @param publicKey
+	 *            Public key to encode
+	 * @return PEM encoded public key
+	 */
+	public static byte[] encodeKey(PublicKey publicKey) {
+		byte[] data = publicKey.getEncoded();
+
+		int length = (data.length + 2) / 3 * 4;
+		int lines = (length + LINE_LENGTH - 1) / LINE_LENGTH;
+		byte[] pem = new byte[PUBLIC_KEY_PREFIX_BYTES.length + length + lines + PUBLIC_KEY_SUFFIX_BYTES.length];
+
+		System.arraycopy(PUBLIC_KEY_PREFIX_BYTES, 0, pem, 0, PUBLIC_KEY_PREFIX_BYTES.length);
+		int offset = PUBLIC_KEY_PREFIX_BYTES.length;
+
+		int column = 0;
+		for (int i = 0; i < data.length; i += 3) {
+			int remaining = data.length - i;
+			int bits = (data[i] & 0xff) << 16;
+			if (remaining > 1) {
+				bits |= (data[i + 1] & 0xff) << 8;
+			}
+			if (remaining > 2) {
+				bits |= data[i + 2] & 0xff;
+			}
+
+			pem[offset++] = BASE64[(bits >>> 18) & 0x3f];
+			pem[offset++] = BASE64[(bits >>> 12) & 0x3f];
+			pem[offset++] = remaining > 1 ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+			pem[offset++] = remaining > 2 ? BASE64[bits & 0x3f] : (byte) '=';
+
+			// 64 is a multiple of 4, so lines always end after a full quantum
+			column += 4;
+			if (column == LINE_LENGTH) {
+				pem[offset++] = '\n';
+				column = 0;
+			}
+		}
+		if (column > 0) {
+			pem[offset++] = '\n';
+		}
+
+		System.arraycopy(PUBLIC_KEY_SUFFIX_BYTES, 0, pem, offset, PUBLIC_KEY_SUFFIX_BYTES.length);
+		return pem;
+	}
+
 	/**
 	 * Load PEM string from the reader and extract the public key.
 	 * 
@@ -112,14 +205,136 @@ public abstract class PublicKeyPemUtility {
 		return generatePublicKey(pem, algorithm);
 	}
 
+	/**
+	 * Extract the public key from PEM encoded US-ASCII bytes (as written by
+	 * {@link #writeKey(OutputStream, PublicKey)}), without decoding the bytes
+	 * into characters first.
+	 * 
+	 * @param pem
+	 *            Bytes contining Base 64 encoded Public Key (as listed above)
+	 * @param algorithm
+	 *            The algorithm of the key
+	 * @return instance of {@link PublicKey}
+	 * @throws InvalidKeySpecException
+	 *             if the given key specification is inappropriate for this key
+	 *             factory to produce a public key.
+	 * @throws NoSuchAlgorithmException
+	 *             if no Provider supports a KeyFactorySpi implementation for
+	 *             the specified algorithm.
+	 */
+	public static PublicKey decodeKey(byte[] pem, String algorithm) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		int start = indexOf(pem, PUBLIC_KEY_PREFIX_ARMOR, 0);
+		if (start < 0) {
+			throw new InvalidKeySpecException("Missing " + PUBLIC_KEY_PREFIX);
+		}
+		start += PUBLIC_KEY_PREFIX_ARMOR.length;
+
+		int end = indexOf(pem, PUBLIC_KEY_SUFFIX_ARMOR, start);
+		if (end < 0) {
+			throw new InvalidKeySpecException("Missing " + PUBLIC_KEY_SUFFIX);
+		}
+
+		return generatePublicKey(decodeBase64(pem, start, end), algorithm);
+	}
+
+	/**
+	 * Internal method returning the {@link KeyFactory} of the algorithm cached
+	 * for the calling thread
+	 */
+	static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+		Map<String, KeyFactory> keyFactories = KEY_FACTORIES.get();
+		KeyFactory keyFactory = keyFactories.get(algorithm);
+		if (keyFactory == null) {
+			keyFactory = KeyFactory.getInstance(algorithm);
+			keyFactories.put(algorithm, keyFactory);
+		}
+		return keyFactory;
+	}
+
 	private static PublicKey generatePublicKey(String base64, String algorithm) throws NoSuchAlgorithmException, InvalidKeySpecException {
-		KeyFactory keyfactory = KeyFactory.getInstance(algorithm);
 		byte[] data = DatatypeConverter.parseBase64Binary(base64);
+		return generatePublicKey(data, algorithm);
+	}
+
+	private static PublicKey generatePublicKey(byte[] data, String algorithm) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		KeyFactory keyfactory = getKeyFactory(algorithm);
 		X509EncodedKeySpec keyspec = new X509EncodedKeySpec(data);
 		return keyfactory.generatePublic(keyspec);
 	}
 
+	/**
+	 * Decode the base-64 bytes in the given range, ignoring whitespace
+	 */
+	private static byte[] decodeBase64(byte[] base64, int from, int to) throws InvalidKeySpecException {
+		byte[] data = new byte[(to - from) / 4 * 3];
+		int length = 0;
+
+		int bits = 0;
+		int count = 0;
+		int padding = 0;
+		for (int i = from; i < to; i++) {
+			int c = base64[i] & 0xff;
+			if (c <= ' ') {
+				continue;
+			}
+
+			int value;
+			if (c == '=') {
+				padding++;
+				value = 0;
+			} else {
+				value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+				if (value < 0 || padding > 0) {
+					throw new InvalidKeySpecException("Invalid base-64 character '" + (char) c + "'");
+				}
+			}
+
+			bits = bits << 6 | value;
+			if (++count == 4) {
+				if (padding > 2) {
+					throw new InvalidKeySpecException("Invalid base-64 padding");
+				}
+				data[length++] = (byte) (bits >> 16);
+				if (padding < 2) {
+					data[length++] = (byte) (bits >> 8);
+				}
+				if (padding < 1) {
+					data[length++] = (byte) bits;
+				}
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count != 0) {
+			throw new InvalidKeySpecException("Truncated base-64 data");
+		}
+
+		return length == data.length ? data : Arrays.copyOf(data, length);
+	}
+
+	private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+		int last = bytes.length - pattern.length;
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < pattern.length && bytes[i + j] == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	private static String generateBase64(PublicKey publicKey) {
 		return DatatypeConverter.printBase64Binary(publicKey.getEncoded());
 	}
+
+	private static byte[] ascii(String value) {
+		byte[] bytes = new byte[value.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) value.charAt(i);
+		}
+		return bytes;
+	}
 }
@@ -1,29 +1,73 @@
 package com.github.publickey;
 
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * Public Key Store implementing {@link KeyResolver} interface. Since this Key
  * Store only stores public keys, only {@link KeyPurpose#VERIFY} purpose is
  * supported.
  * 
+ * Keys are interned by their encoded bytes, so the same key registered under
+ * many aliases is kept as a single {@link PublicKey} instance.
+ * 
+ * Lookups and iteration do not block while the key store is being modified.
+ * A sorted key store additionally keeps its aliases ordered, so hierarchical
+ * aliases (e.g. <code>tenant/env/kid</code>) can be queried and removed by
+ * prefix in O(log n + k).
+ * 
  * @author Simon Galperin
  */
 public class PublicKeyStore implements Iterable<Entry<String, PublicKey>> {
-	private final Map<String, PublicKey> keyStore;
+	// replaced as a whole by archive publishes, modified by this only
+	private volatile ConcurrentMap<String, KeyReference> keyStore;
+
+	// distinct keys, indexed by their encoded bytes, guarded by this
+	private final Map<ByteBuffer, KeyReference> keys;
 
 	// key store is new, therefore it is not changed
-	private boolean changed = false;
+	private volatile boolean changed = false;
+
+	// number of modifications, guarded by this
+	private long modifications;
 
 	/**
 	 * Create empty {@link PublicKeyStore}
 	 */
 	public PublicKeyStore() {
-		this.keyStore = new HashMap<String, PublicKey>();
+		this(false);
+	}
+
+	/**
+	 * Create empty {@link PublicKeyStore}
+	 * 
+	 * @param sorted
+	 *            Flag indicating if aliases should be kept sorted, so prefix
+	 *            and range queries do not have to scan the whole key store
+	 */
+	public PublicKeyStore(boolean sorted) {
+		if (sorted) {
+			this.keyStore = new ConcurrentSkipListMap<String, KeyReference>();
+		} else {
+			this.keyStore = new ConcurrentHashMap<String, KeyReference>();
+		}
+		this.keys = new HashMap<ByteBuffer, KeyReference>();
 	}
 
 	/**
@@ -42,17 +86,7 @@ public class PublicKeyStore implements Iterable<Entry<String, PublicKey>> {
 			throw new IllegalArgumentException("Key is required");
 		}
 
-		// only add initial key if it does not already exist
-		if (keyStore.containsKey(alias)) {
-			PublicKey publicKey = keyStore.get(alias);
-			if (!key.equals(publicKey)) {
-				keyStore.put(alias, key);
-				this.changed = true;
-			}
-		} else {
-			keyStore.put(alias, key);
-			this.changed = true;
-		}
+		put(keyStore, alias, key);
 	}
 
 	/**
@@ -62,10 +96,35 @@ public class PublicKeyStore implements Iterable<Entry<String, PublicKey>> {
 	 *            Alias to be used
 	 */
 	public synchronized void remove(String alias) {
-		PublicKey key = keyStore.remove(alias);
-		if (key != null) {
-			this.changed = true;
+		if (alias == null) {
+			throw new IllegalArgumentException("Alias may not be null");
 		}
+
+		delete(keyStore, alias);
+	}
+
+	/**
+	 * Remove all {@link PublicKey}s with aliases starting with the given prefix
+	 * 
+	 * @param prefix
+	 *            Prefix of the aliases to remove
+	 * @return Number of removed aliases
+	 */
+	public synchronized int removePrefix(String prefix) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		List<String> aliases = new ArrayList<String>();
+		Iterator<Entry<String, KeyReference>> iterator = references(prefix);
+		while (iterator.hasNext()) {
+			aliases.add(iterator.next().getKey());
+		}
+
+		for (String alias : aliases) {
+			remove(alias);
+		}
+		return aliases.size();
 	}
 
 	/**
@@ -84,12 +143,142 @@ public class PublicKeyStore implements Iterable<Entry<String, PublicKey>> {
 		this.changed = changed;
 	}
 
+	/**
+	 * Internal method returning the number of modifications so far (useful
+	 * for {@link PublicKeyArchive} operations, see
+	 * {@link #setUnchanged(long)})
+	 */
+	synchronized long getModificationCount() {
+		return modifications;
+	}
+
+	/**
+	 * Internal method that marks the Key Store as unchanged, unless it was
+	 * modified after the given modification count was taken (e.g. while it
+	 * was being stored by a {@link PublicKeyArchive})
+	 */
+	synchronized void setUnchanged(long modifications) {
+		if (this.modifications == modifications) {
+			this.changed = false;
+		}
+	}
+
+	/**
+	 * Internal method that publishes all keys read by a
+	 * {@link PublicKeyArchive} at once. The changes are applied to a copy of
+	 * the aliases that replaces them with a single reference swap, so lookups
+	 * and iterations see either none or all of them, and no other
+	 * modification can interleave. The keys do not mark the key store as
+	 * changed.
+	 * 
+	 * @param keys
+	 *            Keys to add by alias
+	 * @param replacePrefix
+	 *            In case not null, aliases with this prefix that are neither
+	 *            published nor retained are removed. Replacing the whole key
+	 *            store (empty prefix) marks it as unchanged.
+	 * @param retain
+	 *            Aliases to keep while replacing, even though they are not
+	 *            published
+	 */
+	synchronized void publish(Map<String, PublicKey> keys, String replacePrefix, Set<String> retain) {
+		publish(keys, replacePrefix, retain, Collections.<String, PublicKey>emptyMap());
+	}
+
+	/**
+	 * Internal method that publishes all keys read by a
+	 * {@link PublicKeyArchive} at once, like
+	 * {@link #publish(Map, String, Set)}, and removes keys the archive no
+	 * longer provides.
+	 * 
+	 * @param revoked
+	 *            Keys to remove by alias, an alias is only removed while it
+	 *            still refers to the given key
+	 */
+	synchronized void publish(Map<String, PublicKey> keys, String replacePrefix, Set<String> retain, Map<String, PublicKey> revoked) {
+		boolean changed = this.changed;
+
+		List<String> removals = new ArrayList<String>();
+		for (Entry<String, PublicKey> entry : revoked.entrySet()) {
+			KeyReference reference = keyStore.get(entry.getKey());
+			if (reference != null && reference.key.equals(entry.getValue())) {
+				removals.add(entry.getKey());
+			}
+		}
+
+		if (replacePrefix != null) {
+			Iterator<Entry<String, KeyReference>> iterator = references(replacePrefix);
+			while (iterator.hasNext()) {
+				String alias = iterator.next().getKey();
+				if (!keys.containsKey(alias) && !retain.contains(alias)) {
+					removals.add(alias);
+				}
+			}
+		}
+
+		Map<String, PublicKey> additions = new HashMap<String, PublicKey>();
+		for (Entry<String, PublicKey> entry : keys.entrySet()) {
+			if (entry.getKey() == null) {
+				throw new IllegalArgumentException("Alias is required");
+			}
+			if (entry.getValue() == null) {
+				throw new IllegalArgumentException("Key is required");
+			}
+			KeyReference existing = keyStore.get(entry.getKey());
+			if (existing == null || !entry.getValue().equals(existing.key)) {
+				additions.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// unchanged keys leave the aliases as they are
+		if (!removals.isEmpty() || !additions.isEmpty()) {
+			ConcurrentMap<String, KeyReference> aliases = copy(keyStore);
+			for (String alias : removals) {
+				delete(aliases, alias);
+			}
+			for (Entry<String, PublicKey> entry : additions.entrySet()) {
+				put(aliases, entry.getKey(), entry.getValue());
+			}
+			this.keyStore = aliases;
+		}
+
+		this.changed = "".equals(replacePrefix) ? false : changed;
+	}
+
 	/**
 	 * Method to remove all keys from the key store.
 	 */
 	public synchronized void clear() {
 		this.keyStore.clear();
-		this.changed = true;
+		this.keys.clear();
+		modified();
+	}
+
+	/**
+	 * @return Number of aliases in the key store
+	 */
+	public int size() {
+		return keyStore.size();
+	}
+
+	/**
+	 * @return Number of distinct keys in the key store (aliases referring to
+	 *         the identical key are counted once, keys that do not support
+	 *         encoding are not counted)
+	 */
+	public synchronized int getKeyCount() {
+		return keys.size();
+	}
+
+	/**
+	 * @return Ratio of aliases to distinct keys, 1.0 when every alias has its
+	 *         own key (or the key store is empty)
+	 */
+	public synchronized double getDeduplicationRatio() {
+		if (keys.isEmpty()) {
+			return 1.0;
+		}
+		return (double) keyStore.size() / keys.size();
 	}
 
 	/**
@@ -105,9 +294,60 @@ public class PublicKeyStore implements Iterable<Entry<String, PublicKey>> {
 			throw new IllegalArgumentException("Alias may not be null");
 		}
 
-		synchronized (this) {
-			return keyStore.get(alias);
+		KeyReference reference = keyStore.get(alias);
+		return reference != null ? reference.key : null;
+	}
+
+	/**
+	 * Method used to find all {@link PublicKey}s with aliases starting with
+	 * the given prefix
+	 * 
+	 * @param prefix
+	 *            prefix of the aliases to return
+	 * @return Sorted snapshot of the matching aliases and their keys
+	 */
+	public SortedMap<String, PublicKey> findByPrefix(String prefix) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		return snapshot(references(prefix));
+	}
+
+	/**
+	 * Method used to find all {@link PublicKey}s with aliases in the given
+	 * range
+	 * 
+	 * @param from
+	 *            lowest alias (inclusive)
+	 * @param to
+	 *            highest alias (exclusive)
+	 * @return Sorted snapshot of the matching aliases and their keys
+	 */
+	public SortedMap<String, PublicKey> range(String from, String to) {
+		if (from == null || to == null) {
+			throw new IllegalArgumentException("Range may not be null");
+		}
+
+		SortedMap<String, PublicKey> result = new TreeMap<String, PublicKey>();
+		if (from.compareTo(to) >= 0) {
+			return result;
 		}
+
+		if (keyStore instanceof ConcurrentNavigableMap) {
+			ConcurrentNavigableMap<String, KeyReference> sorted = (ConcurrentNavigableMap<String, KeyReference>) keyStore;
+			for (Entry<String, KeyReference> entry : sorted.subMap(from, to).entrySet()) {
+				result.put(entry.getKey(), entry.getValue().key);
+			}
+		} else {
+			for (Entry<String, KeyReference> entry : keyStore.entrySet()) {
+				String alias = entry.getKey();
+				if (alias.compareTo(from) >= 0 && alias.compareTo(to) < 0) {
+					result.put(alias, entry.getValue().key);
+				}
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -116,17 +356,190 @@ public class PublicKeyStore implements Iterable<Entry<String, PublicKey>> {
 	 * @see java.lang.Iterable#iterator()
 	 */
 	@Override
-	public synchronized Iterator<Entry<String, PublicKey>> iterator() {
-		final Iterator<Entry<String, PublicKey>> iterator = keyStore.entrySet().iterator();
+	public Iterator<Entry<String, PublicKey>> iterator() {
+		final Iterator<Entry<String, KeyReference>> iterator = references();
 
 		// create an imutable iterator
 		return new Iterator<Map.Entry<String,PublicKey>>() {
 			@Override
 			public boolean hasNext() { return iterator.hasNext(); }
 			@Override
-			public Entry<String, PublicKey> next() { return iterator.next(); }
+			public Entry<String, PublicKey> next() {
+				Entry<String, KeyReference> entry = iterator.next();
+				return new SimpleImmutableEntry<String, PublicKey>(entry.getKey(), entry.getValue().key);
+			}
 			@Override
 			public void remove() {}
 		};
 	}
+
+	/**
+	 * Internal iterator over the aliases and their interned keys (useful for
+	 * {@link PublicKeyArchive} operations that need to identify aliases
+	 * sharing the same key).
+	 */
+	Iterator<Entry<String, KeyReference>> references() {
+		return keyStore.entrySet().iterator();
+	}
+
+	/**
+	 * Internal iterator over the aliases starting with the given prefix and
+	 * their interned keys
+	 */
+	Iterator<Entry<String, KeyReference>> references(final String prefix) {
+		final Iterator<Entry<String, KeyReference>> iterator;
+		final boolean sorted = keyStore instanceof ConcurrentNavigableMap;
+		if (sorted) {
+			// sorted aliases with the prefix follow each other
+			iterator = ((ConcurrentNavigableMap<String, KeyReference>) keyStore).tailMap(prefix).entrySet().iterator();
+		} else {
+			iterator = keyStore.entrySet().iterator();
+		}
+
+		return new Iterator<Map.Entry<String,KeyReference>>() {
+			private Entry<String, KeyReference> next = advance();
+
+			private Entry<String, KeyReference> advance() {
+				while (iterator.hasNext()) {
+					Entry<String, KeyReference> entry = iterator.next();
+					if (entry.getKey().startsWith(prefix)) {
+						return entry;
+					}
+					if (sorted) {
+						break;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() { return next != null; }
+			@Override
+			public Entry<String, KeyReference> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Entry<String, KeyReference> entry = next;
+				next = advance();
+				return entry;
+			}
+			@Override
+			public void remove() {}
+		};
+	}
+
+	private static SortedMap<String, PublicKey> snapshot(Iterator<Entry<String, KeyReference>> iterator) {
+		SortedMap<String, PublicKey> result = new TreeMap<String, PublicKey>();
+		while (iterator.hasNext()) {
+			Entry<String, KeyReference> entry = iterator.next();
+			result.put(entry.getKey(), entry.getValue().key);
+		}
+		return result;
+	}
+
+	/**
+	 * Map the given alias to the given key, unless it already is
+	 */
+	private void put(ConcurrentMap<String, KeyReference> aliases, String alias, PublicKey key) {
+		// only add initial key if it does not already exist
+		KeyReference existing = aliases.get(alias);
+		if (existing != null) {
+			if (!key.equals(existing.key)) {
+				aliases.put(alias, intern(key));
+				release(existing);
+				modified();
+			}
+		} else {
+			aliases.put(alias, intern(key));
+			modified();
+		}
+	}
+
+	private void delete(ConcurrentMap<String, KeyReference> aliases, String alias) {
+		KeyReference reference = aliases.remove(alias);
+		if (reference != null) {
+			release(reference);
+			modified();
+		}
+	}
+
+	private static ConcurrentMap<String, KeyReference> copy(ConcurrentMap<String, KeyReference> aliases) {
+		if (aliases instanceof ConcurrentNavigableMap) {
+			return new ConcurrentSkipListMap<String, KeyReference>((SortedMap<String, KeyReference>) aliases);
+		}
+		return new ConcurrentHashMap<String, KeyReference>(aliases);
+	}
+
+	private void modified() {
+		this.modifications++;
+		this.changed = true;
+	}
+
+	/**
+	 * Find the interned reference of the given key, or register it as a new
+	 * distinct key. Keys that do not support encoding are not interned.
+	 */
+	private KeyReference intern(PublicKey key) {
+		byte[] bytes = key.getEncoded();
+		if (bytes == null) {
+			KeyReference reference = new KeyReference(key);
+			reference.references++;
+			return reference;
+		}
+
+		ByteBuffer encoded = ByteBuffer.wrap(bytes);
+		KeyReference reference = keys.get(encoded);
+		if (reference == null) {
+			reference = new KeyReference(key);
+			keys.put(encoded, reference);
+		}
+		reference.references++;
+		return reference;
+	}
+
+	/**
+	 * Release one alias of the given key, dropping the key once no alias
+	 * refers to it anymore
+	 */
+	private void release(KeyReference reference) {
+		if (--reference.references == 0) {
+			byte[] encoded = reference.key.getEncoded();
+			if (encoded != null) {
+				keys.remove(ByteBuffer.wrap(encoded));
+			}
+		}
+	}
+
+	/**
+	 * Interned {@link PublicKey} shared by all aliases that refer to the
+	 * identical key.
+	 */
+	static final class KeyReference {
+		final PublicKey key;
+
+		// number of aliases referring to this key, guarded by the key store
+		int references;
+
+		// PEM encoding of the key, created on first use
+		private volatile byte[] pem;
+
+		KeyReference(PublicKey key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return Cached PEM encoding of the key (see
+		 *         {@link PublicKeyPemUtility#encodeKey(PublicKey)}), must not
+		 *         be modified
+		 */
+		byte[] getPem() {
+			byte[] pem = this.pem;
+			if (pem == null) {
+				// keys are immutable, so concurrent encodings are identical
+				pem = PublicKeyPemUtility.encodeKey(key);
+				this.pem = pem;
+			}
+			return pem;
+		}
+	}
 }
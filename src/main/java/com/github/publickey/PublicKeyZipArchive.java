@@ -1,19 +1,36 @@
 package com.github.publickey;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -26,10 +43,45 @@ import java.util.zip.ZipOutputStream;
  * aliases. Optionally {@link ZipEntry#getComment()} will keep the algorithm of
  * the key.
  * 
+ * Each distinct key is stored once. Further aliases of the same key are stored
+ * as references to the alias holding the key:
+ * 
+ * <code>
+ * -----BEGIN PUBLIC KEY REFERENCE-----
+ * <<Alias of the key>>
+ * -----END PUBLIC KEY REFERENCE-----
+ * <code>
+ * 
+ * Entries are decoded independently (in parallel when an {@link Executor} is
+ * set) and published into the key store at once, so a malformed entry never
+ * leaves the key store partly loaded. The partial variants of load and update
+ * publish all valid entries and report the malformed ones instead of failing.
+ * 
  * @author Simon Galperin
  */
 public class PublicKeyZipArchive implements PublicKeyArchive {
+	private final static String REFERENCE_PREFIX = "-----BEGIN PUBLIC KEY REFERENCE-----";
+	private final static String REFERENCE_SUFFIX = "-----END PUBLIC KEY REFERENCE-----";
+	private final static byte[] REFERENCE_PREFIX_BYTES = REFERENCE_PREFIX.getBytes();
+	// zip entry names are UTF-8, so are the aliases of references
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final static String[] ALGORITHMS = { "RSA", "EC", "DSA", "DH", "EdDSA", "Ed25519", "Ed448", "XDH", "X25519", "X448" };
+	private final static byte[][] ALGORITHM_BYTES = new byte[ALGORITHMS.length][];
+	static {
+		for (int i = 0; i < ALGORITHMS.length; i++) {
+			ALGORITHM_BYTES[i] = ALGORITHMS[i].getBytes();
+		}
+	}
+
 	private final File file;
+
+	// optional executor used to decode entries in parallel
+	private volatile Executor executor;
+
+	// statistics of the last store or update
+	private volatile int aliasCount;
+	private volatile int keyCount;
 	
 	/**
 	 * @param filename
@@ -43,69 +95,223 @@ public class PublicKeyZipArchive implements PublicKeyArchive {
 		
 	}
 
+	/**
+	 * @param executor
+	 *            {@link Executor} used to decode entries in parallel, or null
+	 *            to decode entries in the calling thread. Entries the executor
+	 *            rejects are decoded in the calling thread as well.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
 	@Override
 	public void update(PublicKeyStore keyStore) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
-		FileInputStream stream = new FileInputStream(file);
-		try {
-			// input file
-			ZipInputStream in = new ZipInputStream(stream);
-			try {
-				boolean changed = keyStore.isChanged();
-				// mark the store unchanged, so we can track if it
-				keyStore.setChanged(false);
-				
-				Reader reader = new InputStreamReader(in);
+		update(keyStore, "");
+	}
 
-				ZipEntry entry = in.getNextEntry();
-				while (entry != null) {
-					String alias = entry.getName();
-					
-					String algorithm;
-					
-					// assume that extra bytes store the algorithm
-					byte[] algorithmBytes = entry.getExtra();
-					if (algorithmBytes != null) {
-						algorithm = new String(algorithmBytes);
-					} else {
-						algorithm = "RSA";
-					}
-					PublicKey publicKey = PublicKeyPemUtility.readKey(reader, algorithm);
-					keyStore.add(alias, publicKey);
-					entry = in.getNextEntry();
-				}
-				
-				keyStore.setChanged(changed);
-			} finally {
-				in.close();
-			}
-		} finally {
-			stream.close();
+	/**
+	 * Update (reload) keys with aliases starting with the given prefix from
+	 * this archive into the given {@link PublicKeyStore}. This method does not
+	 * remove any existing keys, only update. In case any entry is malformed
+	 * no keys are updated.
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to update
+	 * @param prefix
+	 *            Prefix of the aliases to update
+	 * @throws IOException
+	 *             In case archive cannot be read
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 */
+	public void update(PublicKeyStore keyStore, String prefix) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		Map<String, PublicKey> loaded = read(prefix, failures);
+		rethrow(failures);
+		
+		keyStore.publish(loaded, null, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Update (reload) all valid keys from this archive into the given
+	 * {@link PublicKeyStore}, skipping malformed entries.
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to update
+	 * @return Malformed entries (quarantined) by alias, with the reason they
+	 *         could not be decoded
+	 * @throws IOException
+	 *             In case archive cannot be read
+	 */
+	public Map<String, Exception> updatePartial(PublicKeyStore keyStore) throws IOException {
+		return updatePartial(keyStore, "");
+	}
+
+	/**
+	 * Update (reload) all valid keys with aliases starting with the given
+	 * prefix from this archive into the given {@link PublicKeyStore}, skipping
+	 * malformed entries.
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to update
+	 * @param prefix
+	 *            Prefix of the aliases to update
+	 * @return Malformed entries (quarantined) by alias, with the reason they
+	 *         could not be decoded
+	 * @throws IOException
+	 *             In case archive cannot be read
+	 */
+	public Map<String, Exception> updatePartial(PublicKeyStore keyStore, String prefix) throws IOException {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
 		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		Map<String, PublicKey> loaded = read(prefix, failures);
+		
+		keyStore.publish(loaded, null, Collections.<String>emptySet());
+		return failures;
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.comcast.x1.sat.PublicKeyArchive#load(com.comcast.x1.sat.PublicKeyStore)
 	 */
 	public void load(PublicKeyStore keyStore) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
-		keyStore.clear();
+		load(keyStore, "");
+	}
+
+	/**
+	 * Load keys with aliases starting with the given prefix from this archive
+	 * into the given {@link PublicKeyStore}, replacing all keys of that prefix.
+	 * In case any entry is malformed the key store is not modified.
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to load
+	 * @param prefix
+	 *            Prefix of the aliases to load
+	 * @throws IOException
+	 *             In case archive cannot be read
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 */
+	public void load(PublicKeyStore keyStore, String prefix) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		Map<String, PublicKey> loaded = read(prefix, failures);
+		rethrow(failures);
 		
-		update(keyStore);
+		keyStore.publish(loaded, prefix, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Load all valid keys from this archive into the given
+	 * {@link PublicKeyStore}, replacing all other keys. Existing keys of
+	 * malformed entries are kept.
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to load
+	 * @return Malformed entries (quarantined) by alias, with the reason they
+	 *         could not be decoded
+	 * @throws IOException
+	 *             In case archive cannot be read
+	 */
+	public Map<String, Exception> loadPartial(PublicKeyStore keyStore) throws IOException {
+		return loadPartial(keyStore, "");
+	}
+
+	/**
+	 * Load all valid keys with aliases starting with the given prefix from
+	 * this archive into the given {@link PublicKeyStore}, replacing all other
+	 * keys of that prefix. Existing keys of malformed entries are kept.
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to load
+	 * @param prefix
+	 *            Prefix of the aliases to load
+	 * @return Malformed entries (quarantined) by alias, with the reason they
+	 *         could not be decoded
+	 * @throws IOException
+	 *             In case archive cannot be read
+	 */
+	public Map<String, Exception> loadPartial(PublicKeyStore keyStore, String prefix) throws IOException {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		Map<String, PublicKey> loaded = read(prefix, failures);
+		
+		keyStore.publish(loaded, prefix, failures.keySet());
+		return failures;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.comcast.x1.sat.PublicKeyArchive#store(com.comcast.x1.sat.PublicKeyStore)
 	 */
 	public void store(PublicKeyStore keyStore) throws IOException {
+		store(keyStore, "");
+	}
+
+	/**
+	 * Store all keys with aliases starting with the given prefix from the
+	 * given {@link PublicKeyStore} into this archive, replacing all entries of
+	 * that prefix. Entries of other prefixes are kept. The key store is only
+	 * marked as unchanged when all keys are stored (empty prefix).
+	 * 
+	 * @param keyStore
+	 *            {@link PublicKeyStore} to store
+	 * @param prefix
+	 *            Prefix of the aliases to store
+	 * @throws IOException
+	 *             In case keyStore cannot be stored
+	 */
+	public void store(PublicKeyStore keyStore, String prefix) throws IOException {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix may not be null");
+		}
+
+		// entries of other prefixes are kept, read them before truncating
+		Map<String, ZipEntryContent> retained = readRetained(prefix);
+
 		FileOutputStream stream = new FileOutputStream(file);
 		try {
 			// out put file
 			ZipOutputStream out = new ZipOutputStream(stream);
 			try {
+				for (Entry<String, ZipEntryContent> retainedEntry : retained.entrySet()) {
+					ZipEntryContent content = retainedEntry.getValue();
+					ZipEntry entry = new ZipEntry(retainedEntry.getKey());
+					entry.setExtra(content.getAlgorithm().getBytes());
+					out.putNextEntry(entry);
+					out.write(content.getContent());
+				}
 
-				Writer writer = new OutputStreamWriter(out);
-				for (Entry<String, PublicKey> keyEntry : keyStore) {
+				// keys modified while storing keep the store changed
+				long modifications = keyStore.getModificationCount();
+				
+				// alias already holding each distinct key
+				Map<PublicKeyStore.KeyReference, String> written = new IdentityHashMap<PublicKeyStore.KeyReference, String>();
+				// the iterator is weakly consistent, an alias removed and added
+				// again while storing may be returned twice
+				Set<String> aliases = new HashSet<String>();
+				
+				Iterator<Entry<String, PublicKeyStore.KeyReference>> iterator = keyStore.references(prefix);
+				while (iterator.hasNext()) {
+					Entry<String, PublicKeyStore.KeyReference> keyEntry = iterator.next();
 					String alias = keyEntry.getKey();
-					PublicKey publicKey = keyEntry.getValue();
+					if (!aliases.add(alias)) {
+						continue;
+					}
+					PublicKeyStore.KeyReference reference = keyEntry.getValue();
+					PublicKey publicKey = reference.key;
 					String algorithm = publicKey.getAlgorithm();
 					
 					ZipEntry entry = new ZipEntry(alias);
@@ -113,12 +319,22 @@ public class PublicKeyZipArchive implements PublicKeyArchive {
 					
 					out.putNextEntry(entry);
 					
-					
-					PublicKeyPemUtility.writeKey(writer, publicKey);
-					writer.flush();
+					String target = written.get(reference);
+					if (target != null) {
+						writeReference(out, target);
+					} else {
+						// PEM is encoded once per key and cached by the key store
+						out.write(reference.getPem());
+						written.put(reference, alias);
+					}
+				}
+				
+				if (prefix.isEmpty()) {
+					keyStore.setUnchanged(modifications);
 				}
 				
-				keyStore.setChanged(false);
+				this.aliasCount = aliases.size();
+				this.keyCount = written.size();
 			} finally {
 				out.close();
 			}
@@ -127,6 +343,284 @@ public class PublicKeyZipArchive implements PublicKeyArchive {
 		}
 	}
 
+	/**
+	 * @return Ratio of aliases to distinct keys of the last {@link #store} or
+	 *         {@link #update}, 1.0 when nothing was deduplicated
+	 */
+	public double getDeduplicationRatio() {
+		int keys = keyCount;
+		if (keys == 0) {
+			return 1.0;
+		}
+		return (double) aliasCount / keys;
+	}
+
+	/**
+	 * @return Raw content of all entries by alias, in archive order
+	 */
+	private Map<String, ZipEntryContent> readContents() throws IOException {
+		Map<String, ZipEntryContent> contents = new LinkedHashMap<String, ZipEntryContent>();
+
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			// input file
+			ZipInputStream in = new ZipInputStream(stream);
+			try {
+				ZipEntry entry = in.getNextEntry();
+				while (entry != null) {
+					contents.put(entry.getName(), new ZipEntryContent(entry, readEntry(in)));
+					entry = in.getNextEntry();
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			stream.close();
+		}
+		return contents;
+	}
+
+	/**
+	 * Raw entries of this archive outside of the given prefix, which are kept
+	 * when the prefix is stored. References to keys within the prefix are
+	 * replaced by a copy of the key, since the prefix is about to be replaced.
+	 */
+	private Map<String, ZipEntryContent> readRetained(String prefix) throws IOException {
+		Map<String, ZipEntryContent> retained = new LinkedHashMap<String, ZipEntryContent>();
+		if (prefix.isEmpty() || !file.exists()) {
+			return retained;
+		}
+
+		Map<String, ZipEntryContent> contents = readContents();
+		for (Entry<String, ZipEntryContent> entry : contents.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				continue;
+			}
+
+			ZipEntryContent content = entry.getValue();
+			if (content.isReference()) {
+				try {
+					String target = content.getReference();
+					ZipEntryContent targetContent = contents.get(target);
+					if (target.startsWith(prefix) && targetContent != null) {
+						content = targetContent;
+					}
+				} catch (InvalidKeySpecException e) {
+					// malformed references are kept as they are
+				}
+			}
+			retained.put(entry.getKey(), content);
+		}
+		return retained;
+	}
+
+	/**
+	 * Read and decode all entries with aliases starting with the given prefix.
+	 * 
+	 * @param failures
+	 *            Receives the malformed entries by alias
+	 * @return Decoded keys by alias
+	 */
+	private Map<String, PublicKey> read(String prefix, Map<String, Exception> failures) throws IOException {
+		Map<String, ZipEntryContent> contents = readContents();
+
+		// decode all keys of the prefix independently, keys outside of the
+		// prefix are only decoded when referenced
+		Executor executor = this.executor;
+		Map<String, Future<PublicKey>> decoded = new HashMap<String, Future<PublicKey>>();
+		for (Entry<String, ZipEntryContent> entry : contents.entrySet()) {
+			ZipEntryContent content = entry.getValue();
+			if (entry.getKey().startsWith(prefix) && !content.isReference()) {
+				decoded.put(entry.getKey(), decode(content, executor));
+			}
+		}
+
+		Map<String, PublicKey> loaded = new LinkedHashMap<String, PublicKey>();
+		int keys = 0;
+		for (Entry<String, ZipEntryContent> entry : contents.entrySet()) {
+			String alias = entry.getKey();
+			if (!alias.startsWith(prefix)) {
+				continue;
+			}
+
+			ZipEntryContent content = entry.getValue();
+			try {
+				if (content.isReference()) {
+					loaded.put(alias, resolveReference(contents, decoded, alias, content));
+				} else {
+					loaded.put(alias, get(decoded.get(alias)));
+					keys++;
+				}
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (Exception e) {
+				failures.put(alias, e);
+			}
+		}
+
+		this.aliasCount = loaded.size();
+		this.keyCount = keys;
+		return loaded;
+	}
+
+	private static PublicKey resolveReference(Map<String, ZipEntryContent> contents, Map<String, Future<PublicKey>> decoded, String alias, ZipEntryContent content) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		String target = content.getReference();
+		Future<PublicKey> future = decoded.get(target);
+		if (future == null) {
+			ZipEntryContent targetContent = contents.get(target);
+			if (targetContent == null || targetContent.isReference()) {
+				throw new InvalidKeySpecException("Unknown reference " + target + " of " + alias);
+			}
+			future = decode(targetContent, null);
+			decoded.put(target, future);
+		}
+
+		try {
+			return get(future);
+		} catch (GeneralSecurityException e) {
+			throw new InvalidKeySpecException("Invalid reference " + target + " of " + alias, e);
+		}
+	}
+
+	private static Future<PublicKey> decode(final ZipEntryContent content, Executor executor) {
+		FutureTask<PublicKey> task = new FutureTask<PublicKey>(new Callable<PublicKey>() {
+			@Override
+			public PublicKey call() throws Exception {
+				return content.decode();
+			}
+		});
+		if (executor != null) {
+			try {
+				executor.execute(task);
+				return task;
+			} catch (RejectedExecutionException e) {
+				// saturated or shut down executor, decode in the calling thread
+			}
+		}
+		task.run();
+		return task;
+	}
+
+	private static PublicKey get(Future<PublicKey> future) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decoding keys");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof NoSuchAlgorithmException) {
+				throw (NoSuchAlgorithmException) cause;
+			}
+			if (cause instanceof InvalidKeySpecException) {
+				throw (InvalidKeySpecException) cause;
+			}
+			throw new InvalidKeySpecException(cause);
+		}
+	}
+
+	/**
+	 * Rethrow the first failure of the strict load and update operations
+	 */
+	private static void rethrow(Map<String, Exception> failures) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+		if (failures.isEmpty()) {
+			return;
+		}
+
+		Exception failure = failures.values().iterator().next();
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof NoSuchAlgorithmException) {
+			throw (NoSuchAlgorithmException) failure;
+		}
+		if (failure instanceof InvalidKeySpecException) {
+			throw (InvalidKeySpecException) failure;
+		}
+		throw new InvalidKeySpecException(failure);
+	}
+
+	private static void writeReference(OutputStream out, String target) throws IOException {
+		out.write((REFERENCE_PREFIX + '\n' + target + '\n' + REFERENCE_SUFFIX + '\n').getBytes(UTF_8));
+	}
+
+	private static byte[] readEntry(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Raw content of a single zip entry, either a PEM encoded key or a
+	 * reference to another alias
+	 */
+	private static final class ZipEntryContent {
+		private final String algorithm;
+		private final byte[] content;
+
+		ZipEntryContent(ZipEntry entry, byte[] content) {
+			// assume that extra bytes store the algorithm
+			byte[] algorithmBytes = entry.getExtra();
+			if (algorithmBytes != null) {
+				this.algorithm = algorithm(algorithmBytes);
+			} else {
+				this.algorithm = "RSA";
+			}
+			this.content = content;
+		}
+
+		boolean isReference() {
+			if (content.length < REFERENCE_PREFIX_BYTES.length) {
+				return false;
+			}
+			for (int i = 0; i < REFERENCE_PREFIX_BYTES.length; i++) {
+				if (content[i] != REFERENCE_PREFIX_BYTES[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		String getReference() throws InvalidKeySpecException {
+			String content = new String(this.content, UTF_8);
+			int start = REFERENCE_PREFIX.length() + 1;
+			int end = content.indexOf(REFERENCE_SUFFIX);
+			if (end < start) {
+				throw new InvalidKeySpecException("Missing " + REFERENCE_SUFFIX);
+			}
+			return content.substring(start, end - 1);
+		}
+
+		String getAlgorithm() {
+			return algorithm;
+		}
+
+		byte[] getContent() {
+			return content;
+		}
+
+		PublicKey decode() throws NoSuchAlgorithmException, InvalidKeySpecException {
+			return PublicKeyPemUtility.decodeKey(content, algorithm);
+		}
+	}
+
+	/**
+	 * Map the algorithm stored in the extra bytes to a shared instance of the
+	 * well known algorithm names, instead of creating a new string per entry
+	 */
+	private static String algorithm(byte[] bytes) {
+		for (int i = 0; i < ALGORITHMS.length; i++) {
+			if (Arrays.equals(ALGORITHM_BYTES[i], bytes)) {
+				return ALGORITHMS[i];
+			}
+		}
+		return new String(bytes);
+	}
+
 	private static boolean isValid(String filename) {
 		try {
 			Paths.get(filename);
@@ -0,0 +1,58 @@
+package com.github.publickey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JsonParserTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testParse() throws Exception {
+		Map<String, Object> actual = (Map<String, Object>) JsonParser.parse(
+				" {\"keys\" : [ {\"kid\":\"a\\\"b\\u0041\\n\"}, 12.5e3, true, false, null ], \"empty\":{}, \"list\":[]} ");
+
+		List<Object> keys = (List<Object>) actual.get("keys");
+		assertEquals(5, keys.size());
+		assertEquals("a\"bA\n", ((Map<String, Object>) keys.get(0)).get("kid"));
+		assertEquals(Arrays.<Object>asList("12.5e3", Boolean.TRUE, Boolean.FALSE, null), keys.subList(1, 5));
+		assertEquals(0, ((Map<String, Object>) actual.get("empty")).size());
+		assertEquals(0, ((List<Object>) actual.get("list")).size());
+		assertNull(JsonParser.parse("null"));
+	}
+
+	@Test(expected=IOException.class)
+	public void testParseUnterminatedString() throws Exception {
+		JsonParser.parse("{\"kid\":\"a");
+	}
+
+	@Test(expected=IOException.class)
+	public void testParseUnterminatedObject() throws Exception {
+		JsonParser.parse("{\"kid\":\"a\"");
+	}
+
+	@Test(expected=IOException.class)
+	public void testParseTrailingContent() throws Exception {
+		JsonParser.parse("{} {}");
+	}
+
+	@Test(expected=IOException.class)
+	public void testParseInvalidLiteral() throws Exception {
+		JsonParser.parse("[tru]");
+	}
+
+	@Test(expected=IOException.class)
+	public void testParseNestingTooDeep() throws Exception {
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			json.append('[');
+		}
+		JsonParser.parse(json.toString());
+	}
+}
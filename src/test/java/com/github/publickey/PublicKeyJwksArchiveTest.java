@@ -0,0 +1,397 @@
+package com.github.publickey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PublicKeyJwksArchiveTest {
+	private static RSAPublicKey expected1;
+	private static ECPublicKey expected2;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private URL url;
+
+	// served document, its ETag and the number of requests received
+	private volatile String jwks;
+	private volatile String etag;
+	private volatile int status = 200;
+	private volatile CountDownLatch release;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+
+	@BeforeClass
+	public static void createKey() throws Exception {
+		expected1 = (RSAPublicKey) KeyPairGenerator.getInstance("RSA").generateKeyPair().getPublic();
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(256);
+		expected2 = (ECPublicKey) generator.generateKeyPair().getPublic();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jwks", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				try {
+					CountDownLatch latch = release;
+					if (latch != null) {
+						latch.await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				if (status != 200) {
+					exchange.sendResponseHeaders(status, -1);
+					exchange.close();
+					return;
+				}
+
+				String tag = etag;
+				if (tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+
+				byte[] body = jwks.getBytes("UTF-8");
+				exchange.getResponseHeaders().set("ETag", tag);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		serverExecutor = Executors.newCachedThreadPool();
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/jwks");
+		serve("\"v1\"", rsa("rsa1", expected1));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		serve("\"v1\"", rsa("rsa1", expected1), ec("ec1", expected2), "{\"kid\":\"oct1\",\"kty\":\"oct\",\"k\":\"AAAA\"}");
+
+		PublicKeyStore keyStore = new PublicKeyStore();
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url, "tenant1/");
+		archive.load(keyStore);
+
+		assertEquals(expected1, keyStore.findKey("tenant1/rsa1"));
+		assertEquals(expected2, keyStore.findKey("tenant1/ec1"));
+		assertEquals(2, keyStore.size());
+	}
+
+	@Test
+	public void testLoadPrefix() throws Exception {
+		PublicKeyStore keyStore = new PublicKeyStore();
+		keyStore.add("tenant1/rsa1", expected1);
+		keyStore.add("tenant2/old", expected2);
+
+		new PublicKeyJwksArchive(url, "tenant2/").load(keyStore);
+
+		// only aliases of the archive prefix are replaced
+		assertEquals(expected1, keyStore.findKey("tenant1/rsa1"));
+		assertEquals(expected1, keyStore.findKey("tenant2/rsa1"));
+		assertNull(keyStore.findKey("tenant2/old"));
+		assertEquals(2, keyStore.size());
+	}
+
+	@Test
+	public void testLoadMalformedKey() throws Exception {
+		serve("\"v1\"", rsa("rsa1", expected1), "{\"kid\":\"k1\",\"kty\":\"EC\",\"crv\":\"secp256k1\",\"x\":\"AA\",\"y\":\"AA\"}",
+				"{\"kid\":\"bad1\",\"kty\":\"RSA\",\"e\":\"AQAB\"}", ec("ec1", expected2));
+
+		PublicKeyStore keyStore = new PublicKeyStore();
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		archive.load(keyStore);
+
+		// unsupported curves are skipped, undecodable keys are quarantined
+		assertEquals(expected1, keyStore.findKey("rsa1"));
+		assertEquals(expected2, keyStore.findKey("ec1"));
+		assertEquals(2, keyStore.size());
+		assertEquals(1, archive.getFailures().size());
+		assertTrue(archive.getFailures().containsKey("bad1"));
+
+		// a key that turns undecodable keeps its previous version
+		serve("\"v2\"", "{\"kid\":\"rsa1\",\"kty\":\"RSA\",\"n\":\"AQAB\"}", ec("ec1", expected2));
+		archive.update(keyStore);
+		assertEquals(expected1, keyStore.findKey("rsa1"));
+		assertTrue(archive.getFailures().containsKey("rsa1"));
+
+		serve("\"v3\"", rsa("rsa1", expected1), ec("ec1", expected2));
+		archive.update(keyStore);
+		assertEquals(expected1, keyStore.findKey("rsa1"));
+		assertTrue(archive.getFailures().isEmpty());
+	}
+
+	@Test
+	public void testUpdateNotModified() throws Exception {
+		PublicKeyStore keyStore = new PublicKeyStore();
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		archive.update(keyStore);
+		PublicKey key = keyStore.findKey("rsa1");
+
+		archive.update(keyStore);
+		assertEquals(2, requests.get());
+		assertEquals(1, notModified.get());
+		assertSame(key, keyStore.findKey("rsa1"));
+
+		// an unchanged response is applied to a different key store as well
+		PublicKeyStore other = new PublicKeyStore();
+		archive.load(other);
+		assertSame(key, other.findKey("rsa1"));
+	}
+
+	@Test
+	public void testUpdateChanged() throws Exception {
+		PublicKeyStore keyStore = new PublicKeyStore();
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		archive.update(keyStore);
+		PublicKey key = keyStore.findKey("rsa1");
+
+		serve("\"v2\"", rsa("rsa1", expected1), ec("ec1", expected2));
+		archive.update(keyStore);
+
+		// unchanged keys are not decoded again
+		assertSame(key, keyStore.findKey("rsa1"));
+		assertEquals(expected2, keyStore.findKey("ec1"));
+
+		// keys that are no longer served are removed
+		serve("\"v3\"", ec("ec1", expected2));
+		archive.update(keyStore);
+		assertNull(keyStore.findKey("rsa1"));
+		assertEquals(1, keyStore.size());
+	}
+
+	@Test
+	public void testFindKeyRemoved() throws Exception {
+		PublicKeyStore keyStore = new PublicKeyStore();
+		PublicKeyStore other = new PublicKeyStore();
+		PublicKeyStore stale = new PublicKeyStore();
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		archive.setMinRefreshInterval(0);
+		archive.update(keyStore);
+		archive.update(other);
+		archive.update(stale);
+		other.add("ec1", expected2);
+
+		serve("\"v2\"", ec("ec1", expected2));
+		assertEquals(expected2, archive.findKey(keyStore, "ec1"));
+		assertNull(keyStore.findKey("rsa1"));
+
+		// key stores refreshed later remove the key as well
+		archive.update(other);
+		assertNull(other.findKey("rsa1"));
+
+		// aliases assigned to a different key are kept
+		keyStore.add("rsa1", expected2);
+		archive.update(keyStore);
+		assertEquals(expected2, keyStore.findKey("rsa1"));
+
+		// removals are only remembered until the next response, key stores
+		// that missed them drop the key on load
+		serve("\"v3\"", ec("ec1", expected2), ec("ec2", expected2));
+		archive.update(stale);
+		assertEquals(expected1, stale.findKey("rsa1"));
+		archive.load(stale);
+		assertNull(stale.findKey("rsa1"));
+	}
+
+	@Test
+	public void testFindKeyRateLimited() throws Exception {
+		PublicKeyStore keyStore = new PublicKeyStore();
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		archive.setMinRefreshInterval(60000);
+
+		assertEquals(expected1, archive.findKey(keyStore, "rsa1"));
+		assertEquals(1, requests.get());
+
+		serve("\"v2\"", rsa("rsa1", expected1), ec("ec1", expected2));
+		assertNull(archive.findKey(keyStore, "ec1"));
+		assertNull(archive.findKey(keyStore, "unknown"));
+		assertEquals(1, requests.get());
+
+		archive.setMinRefreshInterval(0);
+		assertEquals(expected2, archive.findKey(keyStore, "ec1"));
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void testFindKeySharedArchive() throws Exception {
+		PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		archive.setMinRefreshInterval(60000);
+		assertEquals(expected1, archive.findKey(new PublicKeyStore(), "rsa1"));
+
+		// a rate limited lookup applies the keys of the last response
+		PublicKeyStore other = new PublicKeyStore();
+		assertEquals(expected1, archive.findKey(other, "rsa1"));
+		assertNull(archive.findKey(other, "unknown"));
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testFindKeySingleFlight() throws Exception {
+		final PublicKeyStore keyStore = new PublicKeyStore();
+		final PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		release = new CountDownLatch(1);
+
+		int threads = 16;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<PublicKey>> results = new ArrayList<Future<PublicKey>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(new Callable<PublicKey>() {
+					@Override
+					public PublicKey call() throws Exception {
+						return archive.findKey(keyStore, "rsa1");
+					}
+				}));
+			}
+
+			// let the lookups pile up behind the first request
+			Thread.sleep(200);
+			release.countDown();
+
+			for (Future<PublicKey> result : results) {
+				assertEquals(expected1, result.get());
+			}
+			assertEquals(1, requests.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testUpdateFailedSingleFlight() throws Exception {
+		final PublicKeyStore keyStore = new PublicKeyStore();
+		final PublicKeyJwksArchive archive = new PublicKeyJwksArchive(url);
+		release = new CountDownLatch(1);
+		status = 500;
+
+		int threads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						archive.update(keyStore);
+						return null;
+					}
+				}));
+			}
+
+			Thread.sleep(200);
+			release.countDown();
+
+			// callers joining the failed request fail as well
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+					fail("Failed refresh was not reported");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+				}
+			}
+			assertEquals(1, requests.get());
+			assertEquals(0, keyStore.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testUpdateMalformed() throws Exception {
+		jwks = "{\"keys\":[";
+
+		new PublicKeyJwksArchive(url).update(new PublicKeyStore());
+	}
+
+	@Test(expected=IOException.class)
+	public void testStore() throws Exception {
+		new PublicKeyJwksArchive(url).store(new PublicKeyStore());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testMissingUrl() throws Exception {
+		new PublicKeyJwksArchive(null);
+	}
+
+	private void serve(String etag, String... keys) {
+		StringBuilder builder = new StringBuilder("{\"keys\":[");
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(keys[i]);
+		}
+		this.jwks = builder.append("]}").toString();
+		this.etag = etag;
+	}
+
+	private static String rsa(String kid, RSAPublicKey key) {
+		return "{\"kid\":\"" + kid + "\",\"kty\":\"RSA\",\"use\":\"sig\",\"n\":\"" + base64url(key.getModulus())
+				+ "\",\"e\":\"" + base64url(key.getPublicExponent()) + "\"}";
+	}
+
+	private static String ec(String kid, ECPublicKey key) {
+		return "{\"kid\":\"" + kid + "\",\"kty\":\"EC\",\"crv\":\"P-256\",\"x\":\"" + base64url(key.getW().getAffineX())
+				+ "\",\"y\":\"" + base64url(key.getW().getAffineY()) + "\"}";
+	}
+
+	private static String base64url(BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		if (bytes[0] == 0 && bytes.length > 1) {
+			byte[] unsigned = new byte[bytes.length - 1];
+			System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+			bytes = unsigned;
+		}
+		return DatatypeConverter.printBase64Binary(bytes).replace('+', '-').replace('/', '_').replace("=", "");
+	}
+}
@@ -0,0 +1,100 @@
+package com.github.publickey;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.Test;
+
+/**
+ * Decoding throughput per algorithm. Excluded from the regular build (see
+ * surefire excludes), run explicitly with
+ * <code>mvn test -Dtest=PublicKeyPemUtilityBenchmarkTestCase</code>. The
+ * number of iterations can be set with <code>-Dbenchmark.iterations</code>.
+ */
+public class PublicKeyPemUtilityBenchmarkTestCase {
+	private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 20000);
+
+	@Test
+	public void testRSA() throws Exception {
+		benchmark("RSA", 2048);
+	}
+
+	@Test
+	public void testEC() throws Exception {
+		benchmark("EC", 256);
+	}
+
+	@Test
+	public void testEd25519() throws Exception {
+		benchmark("Ed25519", 0);
+	}
+
+	private static void benchmark(String algorithm, int size) throws Exception {
+		KeyPairGenerator generator;
+		try {
+			generator = KeyPairGenerator.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			System.out.println(algorithm + ": not supported by this JVM, skipped");
+			return;
+		}
+		if (size > 0) {
+			generator.initialize(size);
+		}
+
+		PublicKey key = generator.generateKeyPair().getPublic();
+		String keyAlgorithm = key.getAlgorithm();
+		final byte[] pem = PublicKeyPemUtility.encodeKey(key);
+		final String text = new String(pem, "US-ASCII");
+
+		// the decoding path before the KeyFactory cache and byte decoder
+		double baseline = measure(new Decoder() {
+			@Override
+			public PublicKey decode(String algorithm) throws Exception {
+				String base64 = text.replace("-----BEGIN PUBLIC KEY-----", "").replace("-----END PUBLIC KEY-----", "").replaceAll("\\s", "");
+				return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(DatatypeConverter.parseBase64Binary(base64)));
+			}
+		}, keyAlgorithm, key);
+
+		double reader = measure(new Decoder() {
+			@Override
+			public PublicKey decode(String algorithm) throws Exception {
+				return PublicKeyPemUtility.readKey(new StringReader(text), algorithm);
+			}
+		}, keyAlgorithm, key);
+
+		double bytes = measure(new Decoder() {
+			@Override
+			public PublicKey decode(String algorithm) throws Exception {
+				return PublicKeyPemUtility.decodeKey(pem, algorithm);
+			}
+		}, keyAlgorithm, key);
+
+		System.out.println(String.format("%s-%d: uncached %.0f keys/s, readKey %.0f keys/s, decodeKey %.0f keys/s",
+				algorithm, size, baseline, reader, bytes));
+	}
+
+	private static double measure(Decoder decoder, String algorithm, PublicKey expected) throws Exception {
+		// warm up
+		for (int i = 0; i < ITERATIONS / 10; i++) {
+			decoder.decode(algorithm);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			assertEquals(expected, decoder.decode(algorithm));
+		}
+		return ITERATIONS * 1e9 / (System.nanoTime() - start);
+	}
+
+	private interface Decoder {
+		PublicKey decode(String algorithm) throws Exception;
+	}
+}
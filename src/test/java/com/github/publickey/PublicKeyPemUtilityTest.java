@@ -2,6 +2,9 @@ package com.github.publickey;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.security.KeyPair;
@@ -50,6 +53,82 @@ public class PublicKeyPemUtilityTest {
 		assertEquals(publicKey, actual);
 	}
 
+	@Test
+	public void testWriteKeyOutputStream() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		PublicKeyPemUtility.writeKey(out, publicKey);
+		
+		InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), "US-ASCII");
+		
+		PublicKey actual = PublicKeyPemUtility.readKey(reader, "RSA");
+		
+		assertEquals(publicKey, actual);
+	}
+
+	@Test
+	public void testEncodeKeyMatchesWriter() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		
+		// EC keys of different sizes cover all base64 padding variants
+		for (int size : new int[] { 256, 384, 521 }) {
+			generator.initialize(size);
+			assertEncodeKeyMatchesWriter(generator.generateKeyPair().getPublic());
+		}
+		assertEncodeKeyMatchesWriter(publicKey);
+	}
+
+	private static void assertEncodeKeyMatchesWriter(PublicKey key) throws Exception {
+		StringWriter writer = new StringWriter();
+		
+		PublicKeyPemUtility.writeKey(writer, key);
+		
+		assertEquals(writer.toString(), new String(PublicKeyPemUtility.encodeKey(key), "US-ASCII"));
+	}
+
+	@Test
+	public void testDecodeKey() throws Exception {
+		assertEquals(publicKey, PublicKeyPemUtility.decodeKey(PublicKeyPemUtility.encodeKey(publicKey), "RSA"));
+		
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		for (int size : new int[] { 256, 384, 521 }) {
+			generator.initialize(size);
+			PublicKey key = generator.generateKeyPair().getPublic();
+			assertEquals(key, PublicKeyPemUtility.decodeKey(PublicKeyPemUtility.encodeKey(key), "EC"));
+		}
+	}
+
+	@Test
+	public void testDecodeKeyWhitespace() throws Exception {
+		String pem = new String(PublicKeyPemUtility.encodeKey(publicKey), "US-ASCII").replace("\n", "\r\n ");
+		
+		assertEquals(publicKey, PublicKeyPemUtility.decodeKey(pem.getBytes("US-ASCII"), "RSA"));
+	}
+
+	@Test(expected=InvalidKeySpecException.class)
+	public void testDecodeKeyMissingPrefix() throws Exception {
+		String pem = new String(PublicKeyPemUtility.encodeKey(publicKey), "US-ASCII");
+		
+		PublicKeyPemUtility.decodeKey(pem.replace("-----BEGIN PUBLIC KEY-----", "").getBytes("US-ASCII"), "RSA");
+	}
+
+	@Test(expected=InvalidKeySpecException.class)
+	public void testDecodeKeyMissingSuffix() throws Exception {
+		String pem = new String(PublicKeyPemUtility.encodeKey(publicKey), "US-ASCII");
+		
+		PublicKeyPemUtility.decodeKey(pem.replace("-----END PUBLIC KEY-----", "").getBytes("US-ASCII"), "RSA");
+	}
+
+	@Test(expected=InvalidKeySpecException.class)
+	public void testDecodeKeyInvalidCharacter() throws Exception {
+		PublicKeyPemUtility.decodeKey("-----BEGIN PUBLIC KEY-----\nAA*A\n-----END PUBLIC KEY-----\n".getBytes("US-ASCII"), "RSA");
+	}
+
+	@Test(expected=InvalidKeySpecException.class)
+	public void testDecodeKeyTruncated() throws Exception {
+		PublicKeyPemUtility.decodeKey("-----BEGIN PUBLIC KEY-----\nAAAAA\n-----END PUBLIC KEY-----\n".getBytes("US-ASCII"), "RSA");
+	}
+
 	@Test(expected=InvalidKeySpecException.class)
 	public void testReadKeyMissingPrefix() throws Exception {
 		StringWriter writer = new StringWriter();
@@ -0,0 +1,459 @@
+package com.github.publickey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Concurrency stress and soak harness for {@link PublicKeyStore} and
+ * {@link PublicKeyZipArchive}. Excluded from the regular build (see surefire
+ * excludes), run explicitly with
+ * <code>mvn test -Dtest=PublicKeyStoreStressTestCase</code>.
+ *
+ * Every worker owns an alias namespace (<code>worker-N/</code>) and keeps a
+ * model of it, while looking up keys of all namespaces. The following
+ * invariants are checked while running:
+ * <ul>
+ * <li>no lost updates: the own namespace always matches the model</li>
+ * <li>archive round trip: the own namespace of a stored archive equals the
+ * model at the time it was stored</li>
+ * <li>isChanged: a modification keeps the key store changed, unless a store
+ * was running or started since</li>
+ * <li>every key found belongs to the key pool</li>
+ * </ul>
+ *
+ * Configuration (system properties): <code>stress.threads</code> (8),
+ * <code>stress.duration</code> in seconds (10), <code>stress.aliases</code>
+ * per worker (64), <code>stress.sorted</code> (false) and
+ * <code>stress.mix</code> (operation weights, default
+ * <code>find=85,add=6,remove=3,store=2,update=2,load=2</code>).
+ */
+public class PublicKeyStoreStressTestCase {
+	private static final String[] OPERATIONS = { "find", "add", "remove", "store", "update", "load" };
+	private static final int FIND = 0, ADD = 1, REMOVE = 2, STORE = 3, UPDATE = 4, LOAD = 5;
+
+	@Test
+	public void testStress() throws Exception {
+		Report report = run(Integer.getInteger("stress.threads", 8),
+				Integer.getInteger("stress.duration", 10) * 1000L,
+				Integer.getInteger("stress.aliases", 64),
+				Boolean.getBoolean("stress.sorted"),
+				System.getProperty("stress.mix", "find=85,add=6,remove=3,store=2,update=2,load=2"));
+
+		System.out.println(report);
+		assertTrue(report.toString(), report.isValid());
+	}
+
+	/**
+	 * Run the harness
+	 *
+	 * @param threads
+	 *            Number of workers
+	 * @param duration
+	 *            Duration in milliseconds
+	 * @param aliases
+	 *            Number of aliases per worker
+	 * @param sorted
+	 *            Flag indicating if the key store is sorted
+	 * @param mix
+	 *            Operation weights, e.g. <code>find=90,add=10</code>
+	 * @return Throughput, latency and invariant violations
+	 */
+	static Report run(int threads, long duration, int aliases, boolean sorted, String mix) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(256);
+		List<PublicKey> pool = new ArrayList<PublicKey>();
+		for (int i = 0; i < 16; i++) {
+			pool.add(generator.generateKeyPair().getPublic());
+		}
+
+		Shared shared = new Shared(new PublicKeyStore(sorted), pool, threads, aliases, weights(mix));
+		List<Worker> workers = new ArrayList<Worker>();
+		List<Thread> running = new ArrayList<Thread>();
+		CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < threads; i++) {
+			Worker worker = new Worker(shared, i, start);
+			workers.add(worker);
+			Thread thread = new Thread(worker, "stress-worker-" + i);
+			running.add(thread);
+			thread.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(duration);
+		shared.stopped = true;
+		for (Thread thread : running) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+
+		// quiescent checks
+		for (Worker worker : workers) {
+			worker.verifyNamespace("final");
+		}
+		long modifications = shared.keyStore.getModificationCount();
+		shared.archive(0).store(shared.keyStore);
+		if (shared.keyStore.isChanged() || modifications != shared.keyStore.getModificationCount()) {
+			shared.violation("store of a quiescent key store left it changed");
+		}
+
+		Report report = new Report(elapsed, shared.violations);
+		for (Worker worker : workers) {
+			report.merge(worker.histograms);
+		}
+		return report;
+	}
+
+	private static int[] weights(String mix) {
+		int[] weights = new int[OPERATIONS.length];
+		for (String part : mix.split(",")) {
+			String[] pair = part.trim().split("=");
+			int index = -1;
+			for (int i = 0; i < OPERATIONS.length; i++) {
+				if (OPERATIONS[i].equals(pair[0].trim())) {
+					index = i;
+				}
+			}
+			if (index < 0 || pair.length != 2) {
+				throw new IllegalArgumentException("Invalid operation mix " + mix);
+			}
+			weights[index] = Integer.parseInt(pair[1].trim());
+		}
+		return weights;
+	}
+
+	/**
+	 * State shared by all workers
+	 */
+	private static final class Shared {
+		final PublicKeyStore keyStore;
+		final List<PublicKey> pool;
+		final int threads;
+		final int aliases;
+		final int[] weights;
+		final int totalWeight;
+		final File directory;
+
+		// full stores started and running, used to check isChanged
+		final AtomicLong storesStarted = new AtomicLong();
+		final AtomicInteger storesRunning = new AtomicInteger();
+		final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<String>();
+		volatile boolean stopped;
+
+		Shared(PublicKeyStore keyStore, List<PublicKey> pool, int threads, int aliases, int[] weights) throws Exception {
+			this.keyStore = keyStore;
+			this.pool = pool;
+			this.threads = threads;
+			this.aliases = aliases;
+			this.weights = weights;
+			int total = 0;
+			for (int weight : weights) {
+				total += weight;
+			}
+			this.totalWeight = total;
+
+			this.directory = File.createTempFile(PublicKeyStoreStressTestCase.class.getSimpleName() + "-", "");
+			directory.delete();
+			directory.mkdir();
+			directory.deleteOnExit();
+		}
+
+		PublicKeyZipArchive archive(int worker) {
+			File file = new File(directory, "worker-" + worker + ".pubar");
+			file.deleteOnExit();
+			return new PublicKeyZipArchive(file.getAbsolutePath());
+		}
+
+		void violation(String message) {
+			// keep the report readable in case an invariant breaks constantly
+			if (violations.size() < 100) {
+				violations.add(message);
+			}
+		}
+	}
+
+	/**
+	 * Worker running the operation mix against its own namespace
+	 */
+	private static final class Worker implements Runnable {
+		private final Shared shared;
+		private final int id;
+		private final String prefix;
+		private final CountDownLatch start;
+		private final Random random;
+		private final PublicKeyZipArchive archive;
+
+		// expected content of the own namespace, and of the last stored archive
+		private final Map<String, PublicKey> model = new HashMap<String, PublicKey>();
+		private Map<String, PublicKey> stored;
+
+		final long[][] histograms = new long[OPERATIONS.length][Report.BUCKETS];
+
+		Worker(Shared shared, int id, CountDownLatch start) {
+			this.shared = shared;
+			this.id = id;
+			this.prefix = "worker-" + id + "/";
+			this.start = start;
+			this.random = new Random(id);
+			this.archive = shared.archive(id);
+		}
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+				while (!shared.stopped) {
+					int operation = next();
+					long begin = System.nanoTime();
+					execute(operation);
+					Report.record(histograms[operation], System.nanoTime() - begin);
+				}
+			} catch (Throwable e) {
+				shared.violation(prefix + " failed: " + e);
+			}
+		}
+
+		private int next() {
+			int value = random.nextInt(shared.totalWeight);
+			for (int i = 0; i < shared.weights.length; i++) {
+				value -= shared.weights[i];
+				if (value < 0) {
+					return i;
+				}
+			}
+			return FIND;
+		}
+
+		private void execute(int operation) throws Exception {
+			PublicKeyStore keyStore = shared.keyStore;
+			switch (operation) {
+			case FIND: {
+				int worker = random.nextInt(shared.threads);
+				String alias = "worker-" + worker + "/" + random.nextInt(shared.aliases);
+				PublicKey key = keyStore.findKey(alias);
+				if (key != null && !shared.pool.contains(key)) {
+					shared.violation("unknown key found for " + alias);
+				}
+				if (worker == id && !equals(model.get(alias), key)) {
+					shared.violation("lost update of " + alias);
+				}
+				break;
+			}
+			case ADD: {
+				String alias = prefix + random.nextInt(shared.aliases);
+				PublicKey key = shared.pool.get(random.nextInt(shared.pool.size()));
+				boolean modifies = !key.equals(model.get(alias));
+				long stores = shared.storesStarted.get();
+				int running = shared.storesRunning.get();
+				keyStore.add(alias, key);
+				model.put(alias, key);
+				if (modifies) {
+					verifyChanged(alias, stores, running);
+				}
+				break;
+			}
+			case REMOVE: {
+				String alias = prefix + random.nextInt(shared.aliases);
+				boolean modifies = model.containsKey(alias);
+				long stores = shared.storesStarted.get();
+				int running = shared.storesRunning.get();
+				keyStore.remove(alias);
+				model.remove(alias);
+				if (modifies) {
+					verifyChanged(alias, stores, running);
+				}
+				break;
+			}
+			case STORE: {
+				Map<String, PublicKey> snapshot = new HashMap<String, PublicKey>(model);
+				shared.storesRunning.incrementAndGet();
+				shared.storesStarted.incrementAndGet();
+				try {
+					archive.store(keyStore);
+				} finally {
+					shared.storesRunning.decrementAndGet();
+				}
+
+				// the own namespace is quiescent, so it must round trip exactly
+				PublicKeyStore loaded = new PublicKeyStore();
+				archive.load(loaded);
+				if (!snapshot.equals(loaded.findByPrefix(prefix))) {
+					shared.violation("archive round trip of " + prefix + " differs from snapshot");
+				}
+				stored = snapshot;
+				break;
+			}
+			case UPDATE:
+				if (stored != null) {
+					archive.update(keyStore, prefix);
+					model.putAll(stored);
+					verifyNamespace("update");
+				}
+				break;
+			case LOAD:
+				if (stored != null) {
+					archive.load(keyStore, prefix);
+					model.clear();
+					model.putAll(stored);
+					verifyNamespace("load");
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unknown operation " + operation);
+			}
+		}
+
+		/**
+		 * A modification keeps the key store changed, unless a store was
+		 * running before or started after it (the counters are read before
+		 * the modification)
+		 */
+		private void verifyChanged(String alias, long stores, int running) {
+			boolean changed = shared.keyStore.isChanged();
+			if (!changed && running == 0 && stores == shared.storesStarted.get()) {
+				shared.violation("isChanged lost after modifying " + alias);
+			}
+		}
+
+		void verifyNamespace(String operation) {
+			Map<String, PublicKey> actual = shared.keyStore.findByPrefix(prefix);
+			if (!model.equals(actual)) {
+				shared.violation("lost update in " + prefix + " after " + operation + ": expected " + model.size() + " aliases, found " + actual.size());
+			}
+		}
+
+		private static boolean equals(PublicKey expected, PublicKey actual) {
+			return expected == null ? actual == null : expected.equals(actual);
+		}
+	}
+
+	/**
+	 * Throughput and latency per operation, using log-linear histograms
+	 * (16 buckets per power of two)
+	 */
+	static final class Report {
+		static final int BUCKETS = 64 * 16;
+
+		private final long elapsed;
+		private final List<String> violations;
+		private final long[][] histograms = new long[OPERATIONS.length][BUCKETS];
+
+		Report(long elapsed, Iterable<String> violations) {
+			this.elapsed = elapsed;
+			this.violations = new ArrayList<String>();
+			for (String violation : violations) {
+				this.violations.add(violation);
+			}
+		}
+
+		/**
+		 * @return Flag indicating if no invariant was violated
+		 */
+		boolean isValid() {
+			return violations.isEmpty();
+		}
+
+		static void record(long[] histogram, long nanos) {
+			histogram[bucket(nanos)]++;
+		}
+
+		static int bucket(long nanos) {
+			long value = Math.max(nanos, 1);
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = Math.max(exponent - 4, 0);
+			return exponent * 16 + (int) ((value >>> shift) & 15);
+		}
+
+		/**
+		 * @return Lowest latency of the bucket in nanoseconds
+		 */
+		static long lowest(int bucket) {
+			int exponent = bucket / 16;
+			long sub = bucket % 16;
+			if (exponent < 4) {
+				return sub;
+			}
+			return (16 + sub) << (exponent - 4);
+		}
+
+		void merge(long[][] source) {
+			for (int i = 0; i < source.length; i++) {
+				for (int j = 0; j < BUCKETS; j++) {
+					histograms[i][j] += source[i][j];
+				}
+			}
+		}
+
+		long count(int operation) {
+			long count = 0;
+			for (long value : histograms[operation]) {
+				count += value;
+			}
+			return count;
+		}
+
+		long percentile(int operation, double percentile) {
+			long count = count(operation);
+			long rank = (long) Math.ceil(count * percentile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += histograms[operation][i];
+				if (seen >= rank && seen > 0) {
+					return lowest(i);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			double seconds = elapsed / 1e9;
+			long total = 0;
+			builder.append(String.format("%-8s %12s %12s %10s %10s %10s %10s%n", "op", "count", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us"));
+			for (int i = 0; i < OPERATIONS.length; i++) {
+				long count = count(i);
+				total += count;
+				if (count == 0) {
+					continue;
+				}
+				builder.append(String.format("%-8s %12d %12.0f %10.1f %10.1f %10.1f %10.1f%n", OPERATIONS[i], count, count / seconds,
+						percentile(i, 0.5) / 1e3, percentile(i, 0.99) / 1e3, percentile(i, 0.999) / 1e3, percentile(i, 1.0) / 1e3));
+			}
+			builder.append(String.format("total %d operations in %.1f s (%.0f ops/s), %d violations%n", total, seconds, total / seconds, violations.size()));
+			for (String violation : violations) {
+				builder.append("  ").append(violation).append('\n');
+			}
+			return builder.toString();
+		}
+	}
+
+	@Test
+	public void testHistogram() throws Exception {
+		assertEquals(1, Report.lowest(Report.bucket(0)));
+		assertEquals(15, Report.lowest(Report.bucket(15)));
+		assertEquals(1000, Report.lowest(Report.bucket(1000)), 1000 / 16);
+		assertEquals(1000000, Report.lowest(Report.bucket(1000000)), 1000000 / 16);
+		Set<Integer> buckets = new HashSet<Integer>();
+		for (long nanos = 1; nanos < Long.MAX_VALUE / 3; nanos *= 3) {
+			assertTrue(buckets.add(Report.bucket(nanos)));
+		}
+	}
+}
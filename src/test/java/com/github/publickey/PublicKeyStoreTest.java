@@ -3,13 +3,21 @@ package com.github.publickey;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.security.KeyPair;
+import java.security.KeyFactory;
 import java.security.KeyPairGenerator;
 import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -104,6 +112,11 @@ public class PublicKeyStoreTest {
 		keyStore.findKey(null);
 	}
 
+	@Test(expected=IllegalArgumentException.class)
+	public void testRemoveNull() throws Exception {
+		keyStore.remove(null);
+	}
+
 	@Test
 	public void testIterator() throws Exception {
 		keyStore.add("test1", expected1);
@@ -135,6 +148,179 @@ public class PublicKeyStoreTest {
 		assertFalse(keyStore.isChanged());
 	}
 
+	@Test
+	public void testAddInternsIdenticalKeys() throws Exception {
+		PublicKey copy = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(expected1.getEncoded()));
+		
+		keyStore.add("test1", expected1);
+		keyStore.add("test2", copy);
+		keyStore.add("test3", expected2);
+		
+		assertSame(keyStore.findKey("test1"), keyStore.findKey("test2"));
+		assertEquals(3, keyStore.size());
+		assertEquals(2, keyStore.getKeyCount());
+		assertEquals(1.5, keyStore.getDeduplicationRatio(), 0.0);
+	}
+
+	@Test
+	public void testAddKeyWithoutEncoding() throws Exception {
+		PublicKey key = new PublicKey() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getAlgorithm() { return "RSA"; }
+			@Override
+			public String getFormat() { return null; }
+			@Override
+			public byte[] getEncoded() { return null; }
+		};
+
+		// keys without encoding are kept, but not interned
+		keyStore.add("test1", key);
+		keyStore.add("test2", key);
+		assertSame(key, keyStore.findKey("test1"));
+		assertSame(key, keyStore.findKey("test2"));
+		assertEquals(0, keyStore.getKeyCount());
+
+		keyStore.remove("test1");
+		assertNull(keyStore.findKey("test1"));
+		assertSame(key, keyStore.findKey("test2"));
+	}
+
+	@Test
+	public void testKeyReferencePem() throws Exception {
+		keyStore.add("test1", expected1);
+		keyStore.add("test2", expected1);
+		
+		Iterator<Entry<String, PublicKeyStore.KeyReference>> iterator = keyStore.references();
+		byte[] pem = iterator.next().getValue().getPem();
+		assertSame(pem, iterator.next().getValue().getPem());
+		assertEquals(new String(PublicKeyPemUtility.encodeKey(expected1)), new String(pem));
+	}
+
+	@Test
+	public void testRemoveReleasesKey() throws Exception {
+		keyStore.add("test1", expected1);
+		keyStore.add("test2", expected1);
+		
+		keyStore.remove("test1");
+		assertEquals(1, keyStore.getKeyCount());
+
+		keyStore.add("test2", expected2);
+		assertEquals(1, keyStore.getKeyCount());
+		assertEquals(expected2, keyStore.findKey("test2"));
+
+		keyStore.clear();
+		assertEquals(0, keyStore.getKeyCount());
+		assertEquals(1.0, keyStore.getDeduplicationRatio(), 0.0);
+	}
+
+	@Test
+	public void testFindByPrefix() throws Exception {
+		for (PublicKeyStore keyStore : new PublicKeyStore[] { new PublicKeyStore(), new PublicKeyStore(true) }) {
+			keyStore.add("tenant1/prod/kid1", expected1);
+			keyStore.add("tenant1/dev/kid1", expected2);
+			keyStore.add("tenant10/prod/kid1", expected2);
+			keyStore.add("tenant2/prod/kid1", expected1);
+
+			SortedMap<String, PublicKey> actual = keyStore.findByPrefix("tenant1/");
+			assertEquals(2, actual.size());
+			assertEquals("tenant1/dev/kid1", actual.firstKey());
+			assertEquals(expected1, actual.get("tenant1/prod/kid1"));
+
+			assertTrue(keyStore.findByPrefix("tenant3/").isEmpty());
+			assertEquals(4, keyStore.findByPrefix("").size());
+		}
+	}
+
+	@Test
+	public void testRange() throws Exception {
+		for (PublicKeyStore keyStore : new PublicKeyStore[] { new PublicKeyStore(), new PublicKeyStore(true) }) {
+			keyStore.add("a", expected1);
+			keyStore.add("b", expected1);
+			keyStore.add("c", expected2);
+
+			SortedMap<String, PublicKey> actual = keyStore.range("b", "d");
+			assertEquals(2, actual.size());
+			assertEquals("b", actual.firstKey());
+			assertEquals(expected2, actual.get("c"));
+
+			assertTrue(keyStore.range("c", "a").isEmpty());
+		}
+	}
+
+	@Test
+	public void testRemovePrefix() throws Exception {
+		for (PublicKeyStore keyStore : new PublicKeyStore[] { new PublicKeyStore(), new PublicKeyStore(true) }) {
+			keyStore.add("tenant1/prod/kid1", expected1);
+			keyStore.add("tenant1/dev/kid1", expected2);
+			keyStore.add("tenant2/prod/kid1", expected1);
+			keyStore.setChanged(false);
+
+			assertEquals(2, keyStore.removePrefix("tenant1/"));
+			assertTrue(keyStore.isChanged());
+			assertNull(keyStore.findKey("tenant1/prod/kid1"));
+			assertEquals(expected1, keyStore.findKey("tenant2/prod/kid1"));
+			assertEquals(1, keyStore.getKeyCount());
+
+			keyStore.setChanged(false);
+			assertEquals(0, keyStore.removePrefix("tenant1/"));
+			assertFalse(keyStore.isChanged());
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testFindByPrefixNull() throws Exception {
+		keyStore.findByPrefix(null);
+	}
+
+	@Test
+	public void testConcurrentStress() throws Exception {
+		for (boolean sorted : new boolean[] { false, true }) {
+			PublicKeyStoreStressTestCase.Report report = PublicKeyStoreStressTestCase.run(4, 500, 16, sorted, "find=70,add=10,remove=5,store=5,update=5,load=5");
+			assertTrue(report.toString(), report.isValid());
+		}
+	}
+
+	@Test
+	public void testPublishAtomic() throws Exception {
+		for (boolean sorted : new boolean[] { false, true }) {
+			final PublicKeyStore keyStore = new PublicKeyStore(sorted);
+			keyStore.add("other", expected1);
+
+			final Map<String, PublicKey> generation1 = new HashMap<String, PublicKey>();
+			generation1.put("tenant/a1", expected1);
+			generation1.put("tenant/a2", expected2);
+			final Map<String, PublicKey> generation2 = new HashMap<String, PublicKey>();
+			generation2.put("tenant/b1", expected2);
+			generation2.put("tenant/b2", expected1);
+			keyStore.publish(generation1, "tenant/", Collections.<String>emptySet());
+
+			final AtomicBoolean running = new AtomicBoolean(true);
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					while (running.get()) {
+						keyStore.publish(generation2, "tenant/", Collections.<String>emptySet());
+						keyStore.publish(generation1, "tenant/", Collections.<String>emptySet());
+					}
+				}
+			};
+			writer.start();
+			try {
+				// readers never see a replace half applied
+				for (int i = 0; i < 20000; i++) {
+					SortedMap<String, PublicKey> tenant = keyStore.findByPrefix("tenant/");
+					assertTrue(tenant.toString(), tenant.equals(generation1) || tenant.equals(generation2));
+					assertEquals(3, size(keyStore));
+				}
+			} finally {
+				running.set(false);
+				writer.join();
+			}
+		}
+	}
+
 	@Test
 	public void testIsChanged() throws Exception {
 		assertFalse(keyStore.isChanged());
@@ -1,13 +1,28 @@
 package com.github.publickey;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -54,6 +69,265 @@ public class PublicKeyZipArchiveTest {
 		assertEquals(expected2, keyStore.findKey("key2"));
 	}
 
+	@Test
+	public void testStoreLoadDeduplicated() throws Exception {
+		File file = File.createTempFile(PublicKeyZipArchiveTest.class.getSimpleName() + "-", ".pubar");
+		file.deleteOnExit();
+		
+		keyStore.add("tenant1/key1", expected1);
+		keyStore.add("tenant2/key1", expected1);
+		
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(file.getAbsolutePath());
+		archive.store(keyStore);
+		assertEquals(2.0, archive.getDeduplicationRatio(), 0.0);
+		
+		PublicKeyStore keyStore = new PublicKeyStore();
+		archive.load(keyStore);
+		assertEquals(2.0, archive.getDeduplicationRatio(), 0.0);
+
+		assertEquals(4, keyStore.size());
+		assertEquals(2, keyStore.getKeyCount());
+		assertEquals(expected1, keyStore.findKey("tenant1/key1"));
+		assertSame(keyStore.findKey("key1"), keyStore.findKey("tenant2/key1"));
+		assertEquals(expected2, keyStore.findKey("key2"));
+	}
+
+	@Test
+	public void testStoreLoadReferenceUtf8() throws Exception {
+		File file = File.createTempFile(PublicKeyZipArchiveTest.class.getSimpleName() + "-", ".pubar");
+		file.deleteOnExit();
+
+		// the second alias is stored as reference to the first one
+		String alias1 = "\u043a\u043b\u044e\u0447/1";
+		String alias2 = "\u043a\u043b\u044e\u0447/2";
+		PublicKeyStore keyStore = new PublicKeyStore(true);
+		keyStore.add(alias1, expected1);
+		keyStore.add(alias2, expected1);
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(file.getAbsolutePath());
+		archive.store(keyStore);
+
+		// references are UTF-8 like the entry names, whatever the platform charset
+		ZipFile zip = new ZipFile(file);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			InputStream in = zip.getInputStream(zip.getEntry(alias2));
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			in.close();
+			assertTrue(new String(content.toByteArray(), "UTF-8").contains(alias1));
+		} finally {
+			zip.close();
+		}
+
+		PublicKeyStore loaded = new PublicKeyStore();
+		archive.load(loaded);
+		assertSame(loaded.findKey(alias1), loaded.findKey(alias2));
+	}
+
+	@Test
+	public void testStoreLoadPrefix() throws Exception {
+		File file = File.createTempFile(PublicKeyZipArchiveTest.class.getSimpleName() + "-", ".pubar");
+		file.deleteOnExit();
+		
+		keyStore.add("tenant1/key1", expected1);
+		keyStore.add("tenant2/key1", expected2);
+		
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(file.getAbsolutePath());
+		archive.store(keyStore);
+		
+		PublicKeyStore keyStore = new PublicKeyStore(true);
+		keyStore.add("tenant1/stale", expected2);
+		keyStore.add("tenant2/kept", expected2);
+		archive.load(keyStore, "tenant1/");
+
+		assertEquals(expected1, keyStore.findKey("tenant1/key1"));
+		assertNull(keyStore.findKey("tenant1/stale"));
+		assertNull(keyStore.findKey("tenant2/key1"));
+		assertEquals(expected2, keyStore.findKey("tenant2/kept"));
+		assertNull(keyStore.findKey("key1"));
+		
+		// storing a prefix keeps the entries of other prefixes
+		archive.store(keyStore, "tenant2/");
+		PublicKeyStore loaded = new PublicKeyStore();
+		archive.load(loaded);
+		assertEquals(4, loaded.size());
+		assertEquals(expected1, loaded.findKey("key1"));
+		assertEquals(expected1, loaded.findKey("tenant1/key1"));
+		assertNull(loaded.findKey("tenant2/key1"));
+		assertEquals(expected2, loaded.findKey("tenant2/kept"));
+	}
+
+	@Test
+	public void testStorePrefixReferenced() throws Exception {
+		File file = File.createTempFile(PublicKeyZipArchiveTest.class.getSimpleName() + "-", ".pubar");
+		file.deleteOnExit();
+
+		// tenant2/key1 is stored as reference to tenant1/key1
+		PublicKeyStore keyStore = new PublicKeyStore(true);
+		keyStore.add("tenant1/key1", expected1);
+		keyStore.add("tenant2/key1", expected1);
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(file.getAbsolutePath());
+		archive.store(keyStore);
+
+		keyStore.removePrefix("tenant1/");
+		archive.store(keyStore, "tenant1/");
+
+		PublicKeyStore loaded = new PublicKeyStore();
+		archive.load(loaded);
+		assertEquals(1, loaded.size());
+		assertEquals(expected1, loaded.findKey("tenant2/key1"));
+	}
+
+	@Test
+	public void testStoreConcurrentModification() throws Exception {
+		File file = File.createTempFile(PublicKeyZipArchiveTest.class.getSimpleName() + "-", ".pubar");
+		file.deleteOnExit();
+		
+		// key modifying the key store while it is being stored
+		final PublicKeyStore keyStore = new PublicKeyStore();
+		keyStore.add("key1", new ForwardingPublicKey(expected1) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public String getAlgorithm() {
+				keyStore.add("late", expected2);
+				return super.getAlgorithm();
+			}
+		});
+		
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(file.getAbsolutePath());
+		archive.store(keyStore);
+		
+		assertTrue(keyStore.isChanged());
+		
+		archive.store(keyStore);
+		assertFalse(keyStore.isChanged());
+	}
+
+	@Test
+	public void testUpdateMalformed() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(createMalformedArchive().getAbsolutePath());
+		
+		PublicKeyStore keyStore = new PublicKeyStore();
+		keyStore.add("key1", expected2);
+		keyStore.setChanged(false);
+		try {
+			archive.update(keyStore);
+		} catch (InvalidKeySpecException e) {
+			// nothing is published in case any entry is malformed
+			assertEquals(expected2, keyStore.findKey("key1"));
+			assertNull(keyStore.findKey("valid"));
+			assertFalse(keyStore.isChanged());
+			return;
+		}
+		throw new AssertionError("Expected InvalidKeySpecException");
+	}
+
+	@Test
+	public void testUpdatePartial() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(createMalformedArchive().getAbsolutePath());
+		
+		PublicKeyStore keyStore = new PublicKeyStore();
+		Map<String, Exception> failures = archive.updatePartial(keyStore);
+
+		assertEquals(3, failures.size());
+		assertEquals(InvalidKeySpecException.class, failures.get("base64").getClass());
+		assertEquals(NoSuchAlgorithmException.class, failures.get("algorithm").getClass());
+		assertEquals(InvalidKeySpecException.class, failures.get("reference").getClass());
+		
+		assertEquals(expected1, keyStore.findKey("valid"));
+		assertEquals(expected1, keyStore.findKey("valid-reference"));
+		assertEquals(2, keyStore.size());
+		assertFalse(keyStore.isChanged());
+	}
+
+	@Test
+	public void testLoadPartialParallel() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(createMalformedArchive().getAbsolutePath());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			archive.setExecutor(executor);
+			
+			PublicKeyStore keyStore = new PublicKeyStore();
+			keyStore.add("stale", expected2);
+			keyStore.add("algorithm", expected2);
+			Map<String, Exception> failures = archive.loadPartial(keyStore);
+
+			assertEquals(3, failures.size());
+			
+			// last known key of a quarantined entry is kept
+			assertEquals(expected2, keyStore.findKey("algorithm"));
+			assertNull(keyStore.findKey("stale"));
+			assertEquals(expected1, keyStore.findKey("valid"));
+			assertEquals(3, keyStore.size());
+			assertFalse(keyStore.isChanged());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLoadPartialRejectingExecutor() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive(createMalformedArchive().getAbsolutePath());
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		executor.shutdown();
+		archive.setExecutor(executor);
+
+		// rejected entries are decoded in the calling thread
+		PublicKeyStore keyStore = new PublicKeyStore();
+		Map<String, Exception> failures = archive.loadPartial(keyStore);
+		assertEquals(3, failures.size());
+		assertEquals(expected1, keyStore.findKey("valid"));
+	}
+
+	private static File createMalformedArchive() throws IOException {
+		File file = File.createTempFile(PublicKeyZipArchiveTest.class.getSimpleName() + "-", ".pubar");
+		file.deleteOnExit();
+		
+		byte[] pem = PublicKeyPemUtility.encodeKey(expected1);
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			writeEntry(out, "valid", "RSA", pem);
+			writeEntry(out, "valid-reference", "RSA", reference("valid"));
+			writeEntry(out, "base64", "RSA", "-----BEGIN PUBLIC KEY-----\nAAAA\n-----END PUBLIC KEY-----\n".getBytes());
+			writeEntry(out, "algorithm", "UNKNOWN", pem);
+			writeEntry(out, "reference", "RSA", reference("base64"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static class ForwardingPublicKey implements PublicKey {
+		private static final long serialVersionUID = 1L;
+		private final PublicKey key;
+
+		ForwardingPublicKey(PublicKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public String getAlgorithm() { return key.getAlgorithm(); }
+		@Override
+		public String getFormat() { return key.getFormat(); }
+		@Override
+		public byte[] getEncoded() { return key.getEncoded(); }
+	}
+
+	private static byte[] reference(String target) {
+		return ("-----BEGIN PUBLIC KEY REFERENCE-----\n" + target + "\n-----END PUBLIC KEY REFERENCE-----\n").getBytes();
+	}
+
+	private static void writeEntry(ZipOutputStream out, String alias, String algorithm, byte[] content) throws IOException {
+		ZipEntry entry = new ZipEntry(alias);
+		entry.setExtra(algorithm.getBytes());
+		out.putNextEntry(entry);
+		out.write(content);
+	}
+
 	@Test(expected=FileNotFoundException.class)
 	public void testLoadNotFound() throws Exception {
 		PublicKeyZipArchive archive = new PublicKeyZipArchive("fake");
@@ -69,7 +343,36 @@ public class PublicKeyZipArchiveTest {
 		PublicKeyStore keyStore = new PublicKeyStore();
 		archive.store(keyStore);
 	}
-	
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testStoreNullPrefix() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive("/invalid/path");
+		archive.store(keyStore, null);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testLoadNullPrefix() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive("/invalid/path");
+		archive.load(keyStore, null);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testLoadPartialNullPrefix() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive("/invalid/path");
+		archive.loadPartial(keyStore, null);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUpdateNullPrefix() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive("/invalid/path");
+		archive.update(keyStore, null);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUpdatePartialNullPrefix() throws Exception {
+		PublicKeyZipArchive archive = new PublicKeyZipArchive("/invalid/path");
+		archive.updatePartial(keyStore, null);
+	}
 
 	@Test(expected=IllegalArgumentException.class)
 	public void testInvalidPath() throws Exception {